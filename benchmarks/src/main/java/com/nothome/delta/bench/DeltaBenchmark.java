@@ -0,0 +1,101 @@
+/*
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package com.nothome.delta.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nothome.delta.ByteBufferSeekableSource;
+import com.nothome.delta.Delta;
+import com.nothome.delta.GDiffWriter;
+import com.nothome.delta.SourceIndex;
+
+/**
+ * Measures {@link Delta} over random data with a number of small edits.
+ * <code>compute</code> includes indexing the source; <code>scan</code>
+ * reuses an index and reads the target as a stream.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeltaBenchmark {
+    
+    @Param({"1048576", "16777216"})
+    int size;
+    
+    @Param({"16", "64", "256"})
+    int chunkSize;
+    
+    /**
+     * Number of edits in the target.
+     */
+    @Param({"0", "16", "4096"})
+    int edits;
+    
+    byte source[];
+    byte target[];
+    SourceIndex index;
+    
+    @Setup
+    public void setup() throws IOException {
+        source = Inputs.random(size, 1);
+        target = Inputs.edit(source, edits, 2);
+        index = new SourceIndex(new ByteBufferSeekableSource(source), chunkSize);
+    }
+    
+    @Benchmark
+    public long compute(Throughput t) throws IOException {
+        Delta d = new Delta();
+        d.setChunkSize(chunkSize);
+        Inputs.NullOutputStream out = new Inputs.NullOutputStream();
+        d.compute(source, target, out);
+        t.bytes += target.length;
+        return out.count;
+    }
+    
+    @Benchmark
+    public long scan(Throughput t) throws IOException {
+        Inputs.NullOutputStream out = new Inputs.NullOutputStream();
+        new Delta().compute(index, new ByteBufferSeekableSource(source),
+                new ByteArrayInputStream(target), new GDiffWriter(out));
+        t.bytes += target.length;
+        return out.count;
+    }
+
+}
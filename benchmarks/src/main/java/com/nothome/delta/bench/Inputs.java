@@ -0,0 +1,170 @@
+/*
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package com.nothome.delta.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates reproducible benchmark inputs from fixed seeds.
+ */
+final class Inputs {
+    
+    private static final String WORDS[] = {
+        "delta", "source", "target", "copy", "data", "chunk", "patch",
+        "checksum", "offset", "length", "stream", "buffer", "match", "index",
+        "public", "void", "return", "if", "else", "while", "int", "long",
+    };
+
+    private Inputs() {
+    }
+    
+    /**
+     * Returns random bytes.
+     */
+    static byte[] random(int size, long seed) {
+        byte b[] = new byte[size];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+
+    /**
+     * Returns a copy of the source with <code>edits</code> random edits,
+     * each replacing, inserting or deleting up to 16 bytes.
+     */
+    static byte[] edit(byte source[], int edits, long seed) {
+        Random random = new Random(seed);
+        byte b[] = source.clone();
+        for (int i = 0; i < edits; i++) {
+            int pos = random.nextInt(b.length);
+            int len = 1 + random.nextInt(Math.min(16, b.length - pos));
+            byte run[] = new byte[len];
+            random.nextBytes(run);
+            switch (random.nextInt(3)) {
+            case 0:
+                System.arraycopy(run, 0, b, pos, len);
+                break;
+            case 1:
+                b = splice(b, pos, 0, run);
+                break;
+            default:
+                b = splice(b, pos, len, new byte[0]);
+            }
+        }
+        return b;
+    }
+    
+    private static byte[] splice(byte b[], int pos, int remove, byte insert[]) {
+        byte n[] = new byte[b.length - remove + insert.length];
+        System.arraycopy(b, 0, n, 0, pos);
+        System.arraycopy(insert, 0, n, pos, insert.length);
+        System.arraycopy(b, pos + remove, n, pos + insert.length, b.length - pos - remove);
+        return n;
+    }
+    
+    /**
+     * Returns lines of words, like source code or a log file.
+     */
+    static String text(int lines, long seed) {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines; i++)
+            line(sb, random);
+        return sb.toString();
+    }
+
+    /**
+     * Returns a copy of the text with <code>edits</code> lines replaced.
+     */
+    static String editText(String text, int edits, long seed) {
+        Random random = new Random(seed);
+        String lines[] = text.split("\n");
+        for (int i = 0; i < edits; i++) {
+            StringBuilder sb = new StringBuilder();
+            line(sb, random);
+            lines[random.nextInt(lines.length)] = sb.substring(0, sb.length() - 1);
+        }
+        StringBuilder sb = new StringBuilder(text.length());
+        for (String line : lines)
+            sb.append(line).append('\n');
+        return sb.toString();
+    }
+    
+    private static void line(StringBuilder sb, Random random) {
+        int words = 2 + random.nextInt(10);
+        for (int j = 0; j < words; j++)
+            sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        sb.append(random.nextInt(1000)).append('\n');
+    }
+
+    /**
+     * Writes a jar of text-like entries. Entries of the target version
+     * differ from the source in a few lines; every tenth entry is new.
+     * 
+     * @param target false for the source version
+     */
+    static File jar(File dir, String name, int entries, int lines, boolean target)
+    throws IOException {
+        File file = new File(dir, name);
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            for (int i = 0; i < entries; i++) {
+                if (!target && i % 10 == 9)
+                    continue;
+                String content = text(lines, i);
+                if (target && i % 3 == 0)
+                    content = editText(content, 2, i);
+                zos.putNextEntry(new ZipEntry("com/example/Entry" + i + ".txt"));
+                zos.write(content.getBytes("UTF-8"));
+                zos.closeEntry();
+            }
+        } finally {
+            zos.close();
+        }
+        return file;
+    }
+    
+    /**
+     * Discards output, counting bytes.
+     */
+    static class NullOutputStream extends OutputStream {
+        
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package com.nothome.delta.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.annotations.TearDown;
+
+import at.spardat.xma.xdelta.JarDelta;
+import at.spardat.xma.xdelta.JarPatcher;
+
+/**
+ * Measures {@link JarDelta} and {@link JarPatcher} on generated jars;
+ * the rate counts the bytes of the target jar.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JarBenchmark {
+    
+    @Param({"100", "1000"})
+    int entries;
+    
+    /**
+     * Lines of text per entry.
+     */
+    @Param({"200"})
+    int lines;
+    
+    File dir;
+    File source;
+    File target;
+    File patch;
+    
+    @Setup
+    public void setup() throws IOException {
+        dir = File.createTempFile("jarbench", "");
+        dir.delete();
+        dir.mkdir();
+        source = Inputs.jar(dir, "source.jar", entries, lines, false);
+        target = Inputs.jar(dir, "target.jar", entries, lines, true);
+        patch = new File(dir, "patch.jar");
+        new JarDelta().computeDelta(new ZipFile(source), new ZipFile(target),
+                new ZipOutputStream(new FileOutputStream(patch)));
+    }
+    
+    @TearDown
+    public void tearDown() {
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+    
+    @Benchmark
+    public long delta(Throughput t) throws IOException {
+        Inputs.NullOutputStream out = new Inputs.NullOutputStream();
+        new JarDelta().computeDelta(new ZipFile(source), new ZipFile(target),
+                new ZipOutputStream(out));
+        t.bytes += target.length();
+        return out.count;
+    }
+    
+    @Benchmark
+    public long patch(Throughput t) throws IOException {
+        Inputs.NullOutputStream out = new Inputs.NullOutputStream();
+        new JarPatcher().applyDelta(new ZipFile(source), new ZipFile(patch),
+                new ZipOutputStream(out));
+        t.bytes += target.length();
+        return out.count;
+    }
+
+}
@@ -27,9 +27,16 @@ import java.io.DataOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.util.Enumeration;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
@@ -37,6 +44,7 @@ import java.util.zip.ZipOutputStream;
 import com.nothome.delta.Delta;
 import com.nothome.delta.DiffWriter;
 import com.nothome.delta.GDiffWriter;
+import com.nothome.delta.SeekableSource;
 
 
 /**
@@ -45,16 +53,84 @@ import com.nothome.delta.GDiffWriter;
  * New files are simply copied to the output zip file. Additionally all files contained in the target zip
  * file are listed in <code>META-INF/file.list</code>.<p>
  * Use {@link JarPatcher} to apply the output zip file.<p>
+ * Entries can be computed concurrently, see {@link #JarDelta(ExecutorService)}.<p>
  *
  * @author gruber
  */
 public class JarDelta {
 
+    /**
+     * Bytes of index per source block: checksum, link and up to two buckets.
+     */
+    private static final int INDEX_BYTES = 16;
+    
+    private final ExecutorService executor;
+    
+    private int maxPending = Runtime.getRuntime().availableProcessors() * 2;
+    
+    private boolean verify = false;
+    
+    private int threshold = SpillOutputStream.DEFAULT_THRESHOLD;
+    
+    /**
+     * Constructs a JarDelta computing the entries one after another.
+     */
+    public JarDelta() {
+        executor = null;
+    }
+    
+    /**
+     * Constructs a JarDelta computing the deltas of entries concurrently.
+     * The output is still written by the calling thread, in the order of the
+     * target entries, so it is the same as without an executor.
+     *
+     * @param executor runs the entries; not shut down by this class
+     */
+    public JarDelta(ExecutorService executor) {
+        if (executor == null)
+            throw new NullPointerException("executor");
+        this.executor = executor;
+    }
+    
+    /**
+     * Sets how many entries may be computing or waiting to be written.
+     * Each holds the output of one entry, in memory up to the spill threshold.
+     */
+    public void setMaxPending(int max) {
+        if (max <= 0)
+            throw new IllegalArgumentException("Invalid max");
+        maxPending = max;
+    }
+
+    /**
+     * Sets whether entries whose CRC-32 and size match are still inflated
+     * and compared byte by byte. By default they are taken as unchanged
+     * from the central directory alone.
+     */
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    /**
+     * Sets how many bytes of an entry, and of its patch, are held in memory;
+     * larger ones go through temporary files. 16MB by default.
+     * <p>
+     * The index of a source entry is kept to about this size too, by
+     * indexing larger sources in larger blocks. This finds fewer matches
+     * in them, but the patch is still a delta.
+     */
+    public void setSpillThreshold(int bytes) {
+        if (bytes < 0)
+            throw new IllegalArgumentException("Invalid bytes");
+        threshold = bytes;
+    }
+
     /**
      * Computes the binary differences of two zip files. For all files contained in source and target which
      * are not equal, the binary difference is caluclated by using
      * {@link com.nothome.delta.Delta#computeDelta(com.nothome.delta.SeekableSource, InputStream, int, DiffWriter)}.
-     * If the files are equal, nothing is written to the output for them.
+     * If the files are equal, nothing is written to the output for them; files with the same
+     * CRC-32 and size are taken as equal without inflating them, see {@link #setVerify(boolean)}.
      * Files contained only in target and files to small for {@link com.nothome.delta.Delta} are copied to output.
      * Files contained only in source are ignored.
      * At last a list of all files contained in target is written to <code>META-INF/file.list</code> in output.
@@ -65,64 +141,239 @@ public class JarDelta {
      * @throws IOException if an error occures reading or writing any entry in a zip file
      */
 	public void computeDelta(ZipFile source, ZipFile target, ZipOutputStream output) throws IOException {
+	    computeDelta(source, target, new ZipWriter(output));
+	}
+
+    /**
+     * Computes the binary differences of two zip files like
+     * {@link #computeDelta(ZipFile, ZipFile, ZipOutputStream)}, but writes the output zip file itself.
+     * Files copied from target keep their compressed bytes and are not inflated and deflated again.
+     *
+     * @param source the original zip file
+     * @param target a modification of the original zip file, read from its file
+     * @param output the stream where the zip file with the patches has to be written to
+     * @throws IOException if an error occures reading or writing any entry in a zip file
+     */
+	public void computeDelta(ZipFile source, ZipFile target, OutputStream output) throws IOException {
+	    computeDelta(source, target, new ZipWriter(output));
+	}
+
+	private void computeDelta(final ZipFile source, final ZipFile target, ZipWriter output) throws IOException {
+        LinkedList<Future<Output>> pending = new LinkedList<Future<Output>>();
         try {
             ByteArrayOutputStream listBytes = new ByteArrayOutputStream();
             PrintWriter list = new PrintWriter(new OutputStreamWriter(listBytes));
     		for(Enumeration enumer=target.entries();enumer.hasMoreElements();) {
-    			ZipEntry targetEntry = (ZipEntry)enumer.nextElement();
-                ZipEntry sourceEntry = source.getEntry(targetEntry.getName());
+    			final ZipEntry targetEntry = (ZipEntry)enumer.nextElement();
                 list.println(targetEntry.getName());
-
-                if(targetEntry.isDirectory()) {
-                    if(sourceEntry==null) {
-                        ZipEntry outputEntry = new ZipEntry(targetEntry);
-                        output.putNextEntry(outputEntry);
-                    }
+                if(executor==null) {
+                    write(computeEntry(source, target, targetEntry), target, output);
                     continue;
                 }
-
-    			int targetSize = (int)targetEntry.getSize();
-    			byte[] targetBytes = new byte[targetSize];
-    			InputStream targetStream = target.getInputStream(targetEntry);
-    			for(int erg=targetStream.read(targetBytes);erg<targetBytes.length;erg+=targetStream.read(targetBytes,erg,targetBytes.length-erg));
-                targetStream.close();
-                int chunk = Delta.DEFAULT_CHUNK_SIZE;
-    			if(sourceEntry==null
-                        || sourceEntry.getSize() <= chunk
-                        || targetEntry.getSize() <= chunk) {  // new Entry od. alter Eintrag od. neuer Eintrag leer
-    				ZipEntry outputEntry = new ZipEntry(targetEntry);
-    				output.putNextEntry(outputEntry);
-    				output.write(targetBytes);
-    			} else {
-    				int sourceSize = (int)sourceEntry.getSize();
-    				byte[] sourceBytes = new byte[sourceSize];
-    				InputStream sourceStream = source.getInputStream(sourceEntry);
-    				for(int erg=sourceStream.read(sourceBytes);erg<sourceBytes.length;erg+=sourceStream.read(sourceBytes,erg,sourceBytes.length-erg));
-    				sourceStream.close();
-                    if(!equal(sourceBytes,targetBytes)) {
-        				ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-                        DiffWriter diffWriter = new GDiffWriter(new DataOutputStream(outputStream));
-        				Delta d = new Delta();
-        				d.compute(sourceBytes,target.getInputStream(targetEntry),diffWriter);
-                        diffWriter.close();
-
-        				ZipEntry outputEntry = new ZipEntry(targetEntry.getName()+".gdiff");
-                        outputEntry.setTime(targetEntry.getTime());
-        				output.putNextEntry(outputEntry);
-        				output.write(outputStream.toByteArray());
+                if(pending.size()>=maxPending) {
+                    write(get(pending.removeFirst()), target, output);
+                }
+                pending.add(executor.submit(new Callable<Output>() {
+                    public Output call() throws IOException {
+                        return computeEntry(source, target, targetEntry);
                     }
-    			}
+                }));
     		}
+            while(!pending.isEmpty()) {
+                write(get(pending.removeFirst()), target, output);
+            }
             list.close();
             ZipEntry listEntry = new ZipEntry("META-INF/file.list");
             output.putNextEntry(listEntry);
             output.write(listBytes.toByteArray());
         } finally {
+            for(Future<Output> f : pending) {
+                discard(f);
+            }
             source.close();
             target.close();
             output.close();
         }
 	}
+	
+	/**
+	 * What to write to the output for one target entry: either data, or the
+	 * target entry itself.
+	 */
+	private static class Output {
+	    final ZipEntry entry;
+	    final SpillOutputStream data;
+	    final boolean copy;
+	    
+	    Output(ZipEntry entry, SpillOutputStream data) {
+	        this.entry = entry;
+	        this.data = data;
+	        this.copy = false;
+	    }
+	    
+	    Output(ZipEntry targetEntry) {
+	        this.entry = targetEntry;
+	        this.data = null;
+	        this.copy = true;
+	    }
+	}
+	
+	private static void write(Output out, ZipFile target, ZipWriter output) throws IOException {
+	    if(out==null) return;
+	    if(out.copy) {
+	        output.copy(target, out.entry);
+	        return;
+	    }
+	    output.putNextEntry(out.entry);
+	    if(out.data!=null) {
+	        try {
+	            out.data.writeTo(output);
+	        } finally {
+	            out.data.delete();
+	        }
+	    }
+	}
+	
+	/**
+	 * Cancels an entry, deleting its output if it was already computed.
+	 */
+	private static void discard(Future<Output> future) {
+	    if(future.cancel(true)) return;
+	    try {
+	        Output out = future.get();
+	        if(out!=null && out.data!=null) {
+	            out.data.delete();
+	        }
+	    } catch (Exception e) {
+	        // failed or interrupted; the first error is reported
+	    }
+	}
+	
+    private static Output get(Future<Output> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw (IOException) new InterruptedIOException().initCause(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw (IOException) new IOException("entry failed").initCause(cause);
+        }
+    }
+
+	/**
+	 * Computes the output for one target entry, or returns null if it is
+	 * unchanged. Runs concurrently for different entries.
+	 */
+	private Output computeEntry(ZipFile source, ZipFile target, ZipEntry targetEntry) throws IOException {
+        ZipEntry sourceEntry = source.getEntry(targetEntry.getName());
+        if(targetEntry.isDirectory()) {
+            if(sourceEntry==null) {
+                return new Output(new ZipEntry(targetEntry), null);
+            }
+            return null;
+        }
+        boolean sameCrc = sourceEntry!=null && sameCrc(sourceEntry, targetEntry);
+        if(sameCrc && !verify) {
+            return null;
+        }
+
+		if(sameCrc && equal(source, sourceEntry, target, targetEntry)) {
+		    return null;
+		}
+        int chunk = Delta.DEFAULT_CHUNK_SIZE;
+		if(sourceEntry==null
+                || sourceEntry.getSize() <= chunk
+                || targetEntry.getSize() <= chunk) {  // new Entry od. alter Eintrag od. neuer Eintrag leer
+			return new Output(targetEntry);
+		}
+		if(!sameCrc && (sourceEntry.getCrc()==-1 || targetEntry.getCrc()==-1)
+		        && equal(source, sourceEntry, target, targetEntry)) {
+		    return null;
+		}
+		SpillOutputStream outputStream = new SpillOutputStream(threshold);
+		SpillOutputStream sourceSpill = new SpillOutputStream(threshold);
+		sourceSpill.read(source, sourceEntry);
+		SeekableSource sourceData = sourceSpill.source();
+		boolean done = false;
+		try {
+		    InputStream targetStream = target.getInputStream(targetEntry);
+		    try {
+		        DiffWriter diffWriter = new GDiffWriter(new DataOutputStream(outputStream));
+		        Delta delta = new Delta();
+		        delta.setChunkSize(chunkSize(sourceSpill.length(), threshold));
+		        delta.compute(sourceData,targetStream,diffWriter);
+		    } finally {
+		        targetStream.close();
+		    }
+		    done = true;
+		} finally {
+		    sourceData.close();
+		    if(!done) outputStream.delete();
+		}
+
+		ZipEntry outputEntry = new ZipEntry(targetEntry.getName()+".gdiff");
+        outputEntry.setTime(targetEntry.getTime());
+        return new Output(outputEntry, outputStream);
+	}
+
+	/**
+	 * Returns the block size that keeps the index of a source within the
+	 * threshold, at least the default chunk size.
+	 */
+	static int chunkSize(long length, int threshold) {
+	    long blocks = Math.max(threshold / INDEX_BYTES, 1);
+	    long chunk = (length + blocks - 1) / blocks;
+	    return (int) Math.min(Math.max(chunk, Delta.DEFAULT_CHUNK_SIZE), Integer.MAX_VALUE / 8);
+	}
+	
+	/**
+	 * Test if the central directory shows two entries to have the same content.
+	 */
+	static boolean sameCrc(ZipEntry source, ZipEntry target) {
+	    return source.getCrc()!=-1 && source.getCrc()==target.getCrc()
+	            && source.getSize()!=-1 && source.getSize()==target.getSize();
+	}
+	
+	/**
+	 * Test if two entries have the same content, reading both.
+	 */
+	private static boolean equal(ZipFile source, ZipEntry sourceEntry, ZipFile target, ZipEntry targetEntry)
+	throws IOException {
+	    InputStream sourceStream = source.getInputStream(sourceEntry);
+	    InputStream targetStream = target.getInputStream(targetEntry);
+	    try {
+	        byte[] sourceBytes = new byte[1024 * 16];
+	        byte[] targetBytes = new byte[sourceBytes.length];
+	        while(true) {
+	            int n = readFully(sourceStream, sourceBytes);
+	            if(n!=readFully(targetStream, targetBytes)) return false;
+	            for(int i=0;i<n;i++) {
+	                if(sourceBytes[i]!=targetBytes[i]) return false;
+	            }
+	            if(n<sourceBytes.length) return true;
+	        }
+	    } finally {
+	        sourceStream.close();
+	        targetStream.close();
+	    }
+	}
+	
+	private static int readFully(InputStream is, byte[] b) throws IOException {
+	    int n = 0;
+	    while(n<b.length) {
+	        int r = is.read(b, n, b.length-n);
+	        if(r==-1) break;
+	        n += r;
+	    }
+	    return n;
+	}
 
     /**
      * Test if the content of two byte arrays is completly identical.
@@ -146,6 +397,6 @@ public class JarDelta {
 			System.err.println("usage JarDelta source target output");
 			return;
 		}
-		new JarDelta().computeDelta(new ZipFile(args[0]),new ZipFile(args[1]),new ZipOutputStream(new FileOutputStream(args[2])));
+		new JarDelta().computeDelta(new ZipFile(args[0]),new ZipFile(args[1]),new FileOutputStream(args[2]));
 	}
 }
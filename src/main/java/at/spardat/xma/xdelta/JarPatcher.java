@@ -28,12 +28,24 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
 
 import com.nothome.delta.GDiffPatcher;
 import com.nothome.delta.PatchException;
+import com.nothome.delta.SeekableSource;
 
 /**
  * This class applys a zip file containing deltas created with {@link JarDelta} using
@@ -41,10 +53,60 @@ import com.nothome.delta.PatchException;
  * The result of this operation is not binary equal to the original target zip file.
  * Timestamps of files and directories are not reconstructed. But the contents of all
  * files in the reconstructed target zip file are complely equal to their originals.
+ * Entries can be patched concurrently, see {@link #JarPatcher(ExecutorService)}.
  *
  * @author s2877
  */
 public class JarPatcher {
+    
+    private final ExecutorService executor;
+    
+    private long maxBuffered = 64L << 20;
+    
+    private int threshold = SpillOutputStream.DEFAULT_THRESHOLD;
+    
+    /**
+     * Constructs a JarPatcher patching the entries one after another.
+     */
+    public JarPatcher() {
+        executor = null;
+    }
+    
+    /**
+     * Constructs a JarPatcher patching entries concurrently. The output is still
+     * written by the calling thread, in the order of <code>META-INF/file.list</code>.
+     *
+     * @param executor runs the entries; not shut down by this class
+     */
+    public JarPatcher(ExecutorService executor) {
+        if (executor == null)
+            throw new NullPointerException("executor");
+        this.executor = executor;
+    }
+    
+    /**
+     * Sets how many bytes entries being patched, or waiting to be written, may hold in
+     * memory, 64MB by default. An entry being patched counts with its source, up to the
+     * spill threshold, plus the threshold for its output; once patched, with the output
+     * it actually holds. An entry counting more than the limit is patched on its own.
+     */
+    public void setMaxBuffered(long bytes) {
+        if (bytes <= 0)
+            throw new IllegalArgumentException("Invalid bytes");
+        maxBuffered = bytes;
+    }
+    
+    /**
+     * Sets how many bytes of a source entry, and of a patched entry waiting to be
+     * written, are held in memory; larger ones go through temporary files.
+     * 16MB by default.
+     */
+    public void setSpillThreshold(int bytes) {
+        if (bytes < 0)
+            throw new IllegalArgumentException("Invalid bytes");
+        threshold = bytes;
+    }
+    
     /**
      * Applies the differences in patch to source to create the target file. All binary difference files
      * are applied to their corresponding file in source using {@link com.nothome.delta.GDiffPatcher}.
@@ -57,62 +119,82 @@ public class JarPatcher {
      * @throws IOException if an error occures reading or writing any entry in a zip file
      */
     public void applyDelta(ZipFile source, ZipFile patch, ZipOutputStream output) throws IOException {
+        applyDelta(source, patch, new ZipWriter(output));
+    }
+
+    /**
+     * Applies the differences in patch to source like {@link #applyDelta(ZipFile, ZipFile, ZipOutputStream)},
+     * but writes the patched zip file itself. Unchanged files and files copied from patch keep their
+     * compressed bytes and are not inflated and deflated again.
+     *
+     * @param source the original zip file, read from its file
+     * @param patch a zip file created by {@link JarDelta#computeDelta(ZipFile, ZipFile, ZipOutputStream)}
+     *        containing the patches to apply, read from its file
+     * @param output the stream where the patched zip file has to be written to
+     * @throws IOException if an error occures reading or writing any entry in a zip file
+     */
+    public void applyDelta(ZipFile source, ZipFile patch, OutputStream output) throws IOException {
+        applyDelta(source, patch, new ZipWriter(output));
+    }
+
+    private void applyDelta(final ZipFile source, final ZipFile patch, final ZipWriter output) throws IOException {
+        LinkedList<Pending> pending = new LinkedList<Pending>();
         try {
             ZipEntry listEntry = patch.getEntry("META-INF/file.list");
             if(listEntry==null) {
                 throw new FileNotFoundException("META-INF/file.list");
             }
+            long buffered = 0;
             BufferedReader list = new BufferedReader(new InputStreamReader(patch.getInputStream(listEntry)));
             for(String fileName=list.readLine();fileName!=null;fileName=list.readLine()) {
                 if("META-INF/file.list".equalsIgnoreCase(fileName)) continue;
+                Pending next = new Pending();
                 ZipEntry patchEntry = patch.getEntry(fileName);
                 if(patchEntry!=null) { // new Entry
-                    if(patchEntry.isDirectory()) {
-                        ZipEntry outputEntry = new ZipEntry(patchEntry);
-                        output.putNextEntry(outputEntry);
-                        continue;
-                    } else {
-                        byte[] patchBytes = new byte[(int)patchEntry.getSize()];
-                        InputStream patchStream = patch.getInputStream(patchEntry);
-                        for(int erg=patchStream.read(patchBytes);erg<patchBytes.length;erg+=patchStream.read(patchBytes,erg,patchBytes.length-erg));
-                        patchStream.close();
-                        ZipEntry outputEntry = new ZipEntry(patchEntry);
-                        output.putNextEntry(outputEntry);
-                        output.write(patchBytes);
-                    }
+                    next.from = patch;
+                    next.entry = patchEntry;
                 } else {
-                    ZipEntry sourceEntry = source.getEntry(fileName);
+                    final ZipEntry sourceEntry = source.getEntry(fileName);
                     if(sourceEntry == null) {
                         throw new FileNotFoundException(fileName+" not found in "+source.getName()+" or "+patch.getName());
                     }
-                    if(sourceEntry.isDirectory()) {
-                        ZipEntry outputEntry = new ZipEntry(sourceEntry);
-                        output.putNextEntry(outputEntry);
-                        continue;
-                    }
-                    byte[] sourceBytes = new byte[(int)sourceEntry.getSize()];
-                    InputStream sourceStream = source.getInputStream(sourceEntry);
-                    for(int erg=sourceStream.read(sourceBytes);erg<sourceBytes.length;erg+=sourceStream.read(sourceBytes,erg,sourceBytes.length-erg));
-                    sourceStream.close();
-
-                    patchEntry = patch.getEntry(fileName+".gdiff");
-                    if(patchEntry!=null) { // changed Entry
-                        ZipEntry outputEntry = new ZipEntry(sourceEntry.getName());
-                        outputEntry.setTime(patchEntry.getTime());
-                        output.putNextEntry(outputEntry);
-                        
-                        InputStream patchStream = patch.getInputStream(patchEntry);
-                        GDiffPatcher diffPatcher = new GDiffPatcher();
-                        diffPatcher.patch(sourceBytes,patchStream,output);
-                        patchStream.close();
-
+                    final ZipEntry diffEntry = patch.getEntry(fileName+".gdiff");
+                    if(diffEntry!=null && !sourceEntry.isDirectory()) { // changed Entry
+                        if(executor==null) {
+                            output.putNextEntry(outputEntry(sourceEntry, diffEntry));
+                            patch(source, sourceEntry, patch, diffEntry, output, threshold);
+                            output.closeEntry();
+                            continue;
+                        }
+                        long sourceSize = sourceEntry.getSize();
+                        next.reserved = (sourceSize >= 0 && sourceSize <= threshold ? sourceSize : threshold)
+                                + threshold;
+                        while(!pending.isEmpty() && buffered + next.reserved > maxBuffered) {
+                            buffered -= release(pending);
+                            if(buffered + next.reserved <= maxBuffered) break;
+                            buffered -= write(pending.removeFirst(), output);
+                        }
+                        buffered += next.reserved;
+                        final boolean deflate = output.isRaw();
+                        final int spill = threshold;
+                        next.future = executor.submit(new Callable<Patched>() {
+                            public Patched call() throws IOException {
+                                return patch(source, sourceEntry, patch, diffEntry, deflate, spill);
+                            }
+                        });
                     } else { // unchanged Entry
-                        ZipEntry outputEntry = new ZipEntry(sourceEntry);
-                        output.putNextEntry(outputEntry);
-                        output.write(sourceBytes);
+                        next.from = source;
+                        next.entry = sourceEntry;
                     }
                 }
-                output.closeEntry(); //nach jedem: output.putNextEntry() + output.write()
+                if(pending.isEmpty() && next.future==null) {
+                    write(next, output);
+                } else {
+                    pending.add(next);
+                }
+            }
+            while(!pending.isEmpty()) {
+                write(pending.removeFirst(), output);
             }
             list.close();
         } catch (PatchException pe) {
@@ -120,11 +202,163 @@ public class JarPatcher {
             ioe.initCause(pe);
             throw ioe;
         } finally {
+            for(Pending p : pending) {
+                if(p.future!=null) discard(p.future);
+            }
             source.close();
             patch.close();
             output.close();
         }
     }
+    
+    /**
+     * An entry waiting to be written: either copied from a zip file, or
+     * patched by a worker.
+     */
+    private static class Pending {
+        ZipFile from;
+        ZipEntry entry;
+        Future<Patched> future;
+        /**
+         * Bytes held in memory at most; the worst case until patched.
+         */
+        long reserved;
+    }
+    
+    /**
+     * A patched entry, deflated if the output takes compressed bytes.
+     */
+    private static class Patched {
+        ZipEntry entry;
+        SpillOutputStream data;
+        boolean deflated;
+        long crc;
+        long size;
+    }
+    
+    /**
+     * Writes an entry, returning the bytes it had reserved.
+     */
+    private static long write(Pending p, ZipWriter output) throws IOException {
+        if(p.future==null) {
+            output.copy(p.from, p.entry);
+            return 0;
+        }
+        Patched patched = get(p.future);
+        try {
+            if(patched.deflated) {
+                output.writeDeflated(patched.entry, patched.crc, patched.size, patched.data);
+            } else {
+                output.putNextEntry(patched.entry);
+                patched.data.writeTo(output);
+                output.closeEntry();
+            }
+        } finally {
+            patched.data.delete();
+        }
+        return p.reserved;
+    }
+    
+    /**
+     * Lowers the reservations of patched entries to the bytes they hold,
+     * returning the bytes released.
+     */
+    private static long release(LinkedList<Pending> pending) {
+        long released = 0;
+        for(Pending p : pending) {
+            if(p.future==null || !p.future.isDone()) continue;
+            try {
+                long held = p.future.get().data.buffered();
+                released += p.reserved - held;
+                p.reserved = held;
+            } catch (Exception e) {
+                // reported when the entry is written
+            }
+        }
+        return released;
+    }
+    
+    /**
+     * Cancels an entry, deleting its output if it was already patched.
+     */
+    private static void discard(Future<Patched> future) {
+        if(future.cancel(true)) return;
+        try {
+            future.get().data.delete();
+        } catch (Exception e) {
+            // failed or interrupted; the first error is reported
+        }
+    }
+    
+    private static ZipEntry outputEntry(ZipEntry sourceEntry, ZipEntry diffEntry) {
+        ZipEntry outputEntry = new ZipEntry(sourceEntry.getName());
+        outputEntry.setTime(diffEntry.getTime());
+        return outputEntry;
+    }
+    
+    /**
+     * Patches one entry into a buffer; runs concurrently for different entries.
+     */
+    private static Patched patch(ZipFile source, ZipEntry sourceEntry, ZipFile patch, ZipEntry diffEntry,
+            boolean deflate, int threshold) throws IOException {
+        Patched patched = new Patched();
+        patched.entry = outputEntry(sourceEntry, diffEntry);
+        patched.data = new SpillOutputStream(threshold);
+        Deflater deflater = deflate ? new Deflater(Deflater.DEFAULT_COMPRESSION, true) : null;
+        boolean done = false;
+        try {
+            if(deflater==null) {
+                patch(source, sourceEntry, patch, diffEntry, patched.data, threshold);
+            } else {
+                CheckedOutputStream out = new CheckedOutputStream(new DeflaterOutputStream(patched.data, deflater), new CRC32());
+                patch(source, sourceEntry, patch, diffEntry, out, threshold);
+                out.close();
+                patched.deflated = true;
+                patched.crc = out.getChecksum().getValue();
+                patched.size = deflater.getBytesRead();
+            }
+            patched.data.close();
+            done = true;
+        } finally {
+            if(deflater!=null) deflater.end();
+            if(!done) patched.data.delete();
+        }
+        return patched;
+    }
+    
+    private static void patch(ZipFile source, ZipEntry sourceEntry, ZipFile patch, ZipEntry diffEntry, OutputStream out,
+            int threshold) throws IOException {
+        SeekableSource sourceData = SpillOutputStream.source(source, sourceEntry, threshold);
+        try {
+            InputStream patchStream = patch.getInputStream(diffEntry);
+            try {
+                GDiffPatcher diffPatcher = new GDiffPatcher();
+                diffPatcher.patch(sourceData,patchStream,out);
+            } finally {
+                patchStream.close();
+            }
+        } finally {
+            sourceData.close();
+        }
+    }
+
+    private static Patched get(Future<Patched> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw (IOException) new InterruptedIOException().initCause(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw (IOException) new IOException("entry failed").initCause(cause);
+        }
+    }
 
     /**
      * Main method to make {@link #applyDelta(ZipFile, ZipFile, ZipOutputStream)} available at
@@ -136,6 +370,6 @@ public class JarPatcher {
             System.err.println("usage JarPatcher source patch output");
             return;
         }
-        new JarPatcher().applyDelta(new ZipFile(args[0]),new ZipFile(args[1]),new ZipOutputStream(new FileOutputStream(args[2])));
+        new JarPatcher().applyDelta(new ZipFile(args[0]),new ZipFile(args[1]),new FileOutputStream(args[2]));
     }
 }
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2003, 2007 s IT Solutions AT Spardat GmbH.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package at.spardat.xma.xdelta;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import com.nothome.delta.ByteBufferSeekableSource;
+import com.nothome.delta.RandomAccessFileSeekableSource;
+import com.nothome.delta.SeekableSource;
+
+/**
+ * Buffers bytes in memory up to a threshold, and in a temporary file
+ * beyond it, so entries of any size are handled with bounded memory.
+ */
+class SpillOutputStream extends OutputStream {
+    
+    /**
+     * Default threshold of 16MB.
+     */
+    static final int DEFAULT_THRESHOLD = 1 << 24;
+    
+    private final int threshold;
+    private byte[] buf = new byte[1024];
+    private int count;
+    private File file;
+    private OutputStream fileOut;
+    private long length;
+    
+    /**
+     * Constructs a SpillOutputStream.
+     *
+     * @param threshold bytes kept in memory at most
+     */
+    SpillOutputStream(int threshold) {
+        this.threshold = threshold;
+    }
+    
+    /**
+     * Reads an entry into a source for {@link com.nothome.delta.Delta} or
+     * {@link com.nothome.delta.GDiffPatcher}. An entry larger than the threshold,
+     * or of unknown size, goes through a temporary file that is deleted when
+     * the source is closed. The file is read, not mapped, since a mapping
+     * is only released by the garbage collector and keeps the file from
+     * being deleted on some platforms.
+     */
+    static SeekableSource source(ZipFile zip, ZipEntry entry, int threshold) throws IOException {
+        SpillOutputStream spill = new SpillOutputStream(threshold);
+        spill.read(zip, entry);
+        return spill.source();
+    }
+    
+    /**
+     * Writes an entry and closes this stream.
+     */
+    void read(ZipFile zip, ZipEntry entry) throws IOException {
+        InputStream is = zip.getInputStream(entry);
+        try {
+            copy(is);
+        } finally {
+            is.close();
+            close();
+        }
+    }
+    
+    /**
+     * Returns the bytes written as a source; this stream must be closed.
+     * A temporary file is deleted when the source is closed.
+     */
+    SeekableSource source() throws IOException {
+        if (file == null)
+            return new ByteBufferSeekableSource(ByteBuffer.wrap(buf, 0, count));
+        final SpillOutputStream spill = this;
+        final RandomAccessFileSeekableSource file;
+        try {
+            file = new RandomAccessFileSeekableSource(new RandomAccessFile(spill.file, "r"));
+        } catch (IOException e) {
+            spill.delete();
+            throw e;
+        }
+        return new SeekableSource() {
+            public void seek(long pos) throws IOException {
+                file.seek(pos);
+            }
+            
+            public int read(ByteBuffer bb) throws IOException {
+                return file.read(bb);
+            }
+            
+            public void close() throws IOException {
+                try {
+                    file.close();
+                } finally {
+                    spill.delete();
+                }
+            }
+        };
+    }
+    
+    /**
+     * Writes the rest of a stream.
+     */
+    void copy(InputStream is) throws IOException {
+        byte[] b = new byte[1024 * 16];
+        for (int n = is.read(b); n != -1; n = is.read(b))
+            write(b, 0, n);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (file == null && len > threshold - count) {
+            file = File.createTempFile("xdelta", ".tmp");
+            fileOut = new BufferedOutputStream(new FileOutputStream(file), 1024 * 64);
+            fileOut.write(buf, 0, count);
+            buf = null;
+        }
+        if (file != null) {
+            fileOut.write(b, off, len);
+        } else {
+            if (count + len > buf.length) {
+                byte[] n = new byte[Math.min(threshold, Math.max(buf.length * 2, count + len))];
+                System.arraycopy(buf, 0, n, 0, count);
+                buf = n;
+            }
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+        length += len;
+    }
+    
+    /**
+     * Returns the number of bytes written.
+     */
+    long length() {
+        return length;
+    }
+    
+    /**
+     * Returns the number of bytes held in memory.
+     */
+    long buffered() {
+        return buf == null ? 0 : buf.length;
+    }
+    
+    /**
+     * Writes the bytes buffered to a stream; the stream must be closed.
+     */
+    void writeTo(OutputStream out) throws IOException {
+        if (file == null) {
+            out.write(buf, 0, count);
+            return;
+        }
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] b = new byte[1024 * 64];
+            for (int n = is.read(b); n != -1; n = is.read(b))
+                out.write(b, 0, n);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Finishes writing to the temporary file, if any.
+     */
+    @Override
+    public void close() throws IOException {
+        if (fileOut != null)
+            fileOut.close();
+    }
+    
+    /**
+     * Deletes the temporary file, if any.
+     */
+    void delete() throws IOException {
+        close();
+        if (file != null && !file.delete())
+            file.deleteOnExit();
+    }
+
+}
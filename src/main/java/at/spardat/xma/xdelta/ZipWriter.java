@@ -0,0 +1,599 @@
+/*
+ * Copyright (c) 2003, 2007 s IT Solutions AT Spardat GmbH.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+package at.spardat.xma.xdelta;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes zip files for {@link JarDelta} and {@link JarPatcher}, either to a
+ * {@link ZipOutputStream} or by itself. Written by itself, entries copied
+ * from another zip file keep their compressed bytes, method, CRC and sizes,
+ * so they are neither inflated nor deflated again. Zip64 records are written
+ * for entries and archives over 4GB and for more than 65535 entries.
+ */
+class ZipWriter extends OutputStream {
+    
+    private static final int LOCAL = 0x04034b50;
+    private static final int CENTRAL = 0x02014b50;
+    private static final int DESCRIPTOR = 0x08074b50;
+    private static final int END = 0x06054b50;
+    private static final int END64 = 0x06064b50;
+    private static final int LOCATOR64 = 0x07064b50;
+    private static final int EXTRA64 = 0x0001;
+    
+    private static final int FLAG_DESCRIPTOR = 0x08;
+    private static final int FLAG_UTF8 = 0x800;
+    
+    private static final long MAX = 0xffffffffL;
+    private static final int MAX_COUNT = 0xffff;
+    
+    private final ZipOutputStream zip;
+    private final OutputStream out;
+    private long written;
+    
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private final Map<ZipFile, Archive> archives = new HashMap<ZipFile, Archive>();
+    private final byte[] buf = new byte[1024 * 64];
+    
+    /**
+     * Entry being deflated, or null.
+     */
+    private Entry current;
+    private Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    
+    /**
+     * Constructs a ZipWriter writing to a zip stream. Copied entries are
+     * inflated and deflated again.
+     */
+    ZipWriter(ZipOutputStream zip) {
+        this.zip = zip;
+        this.out = null;
+    }
+    
+    /**
+     * Constructs a ZipWriter writing a zip file to a stream.
+     */
+    ZipWriter(OutputStream out) {
+        this.zip = null;
+        this.out = new BufferedOutputStream(out, buf.length);
+    }
+    
+    /**
+     * A central directory record.
+     */
+    private static class Entry {
+        byte[] name;
+        byte[] extra;
+        int flags;
+        int method;
+        long time;
+        long crc;
+        long csize;
+        long size;
+        long offset;
+    }
+    
+    /**
+     * Starts an entry written with {@link #write(byte[], int, int)}.
+     * Directories are stored, anything else is deflated.
+     */
+    void putNextEntry(ZipEntry entry) throws IOException {
+        if (zip != null) {
+            zip.putNextEntry(entry);
+            return;
+        }
+        closeEntry();
+        Entry e = entry(entry);
+        if (entry.isDirectory()) {
+            e.method = ZipEntry.STORED;
+            e.crc = 0;
+            e.csize = 0;
+            e.size = 0;
+            writeLocal(e);
+            return;
+        }
+        e.method = ZipEntry.DEFLATED;
+        e.flags |= FLAG_DESCRIPTOR;
+        writeLocal(e);
+        if (deflater == null)
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.reset();
+        crc.reset();
+        current = e;
+    }
+    
+    /**
+     * Writes an entry of another zip file, keeping its compressed bytes if
+     * possible.
+     */
+    void copy(ZipFile from, ZipEntry entry) throws IOException {
+        Archive archive = zip == null ? archive(from) : null;
+        Local local = archive == null ? null : archive.local(entry.getName());
+        if (local == null || entry.getCrc() == -1 || entry.getCompressedSize() == -1 || entry.getSize() == -1) {
+            putNextEntry(new ZipEntry(entry));
+            InputStream is = from.getInputStream(entry);
+            try {
+                for (int n = is.read(buf); n != -1; n = is.read(buf))
+                    write(buf, 0, n);
+            } finally {
+                is.close();
+            }
+            closeEntry();
+            return;
+        }
+        closeEntry();
+        Entry e = entry(entry);
+        // keeps the encryption and compression option bits with the bytes
+        e.flags |= local.flags;
+        e.method = entry.getMethod();
+        e.crc = entry.getCrc();
+        e.csize = entry.getCompressedSize();
+        e.size = entry.getSize();
+        writeLocal(e);
+        FileChannel ch = archive.file.getChannel();
+        ByteBuffer bb = ByteBuffer.wrap(buf);
+        long offset = local.offset;
+        for (long left = e.csize; left > 0; ) {
+            bb.clear().limit((int) Math.min(left, buf.length));
+            int n = ch.read(bb, offset);
+            if (n < 0)
+                throw new ZipException("unexpected end of " + from.getName());
+            out.write(buf, 0, n);
+            written += n;
+            offset += n;
+            left -= n;
+        }
+        if ((e.flags & FLAG_DESCRIPTOR) != 0)
+            writeDescriptor(e);
+    }
+    
+    /**
+     * Returns whether copies keep their compressed bytes, and
+     * {@link #writeDeflated(ZipEntry, long, long, SpillOutputStream)} may be used.
+     */
+    boolean isRaw() {
+        return zip == null;
+    }
+    
+    /**
+     * Writes an entry from data deflated without zlib wrapper.
+     */
+    void writeDeflated(ZipEntry entry, long crc, long size, SpillOutputStream data) throws IOException {
+        if (zip != null)
+            throw new IllegalStateException("not raw");
+        closeEntry();
+        Entry e = entry(entry);
+        e.method = ZipEntry.DEFLATED;
+        e.crc = crc;
+        e.csize = data.length();
+        e.size = size;
+        writeLocal(e);
+        data.writeTo(out);
+        written += e.csize;
+    }
+    
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (zip != null) {
+            zip.write(b, off, len);
+            return;
+        }
+        if (current == null)
+            throw new ZipException("no current deflated entry");
+        crc.update(b, off, len);
+        deflater.setInput(b, off, len);
+        while (!deflater.needsInput())
+            deflate();
+    }
+    
+    private void deflate() throws IOException {
+        int n = deflater.deflate(buf, 0, buf.length);
+        if (n > 0) {
+            out.write(buf, 0, n);
+            written += n;
+        }
+    }
+    
+    /**
+     * Finishes the current entry.
+     */
+    void closeEntry() throws IOException {
+        if (zip != null) {
+            zip.closeEntry();
+            return;
+        }
+        if (current == null)
+            return;
+        deflater.finish();
+        while (!deflater.finished())
+            deflate();
+        Entry e = current;
+        current = null;
+        e.crc = crc.getValue();
+        e.csize = deflater.getBytesWritten();
+        e.size = deflater.getBytesRead();
+        writeDescriptor(e);
+    }
+    
+    /**
+     * Writes a data descriptor, with 8 byte sizes if either is too large
+     * for 4 bytes, as {@link ZipOutputStream} does.
+     */
+    private void writeDescriptor(Entry e) throws IOException {
+        writeInt(DESCRIPTOR);
+        writeInt(e.crc);
+        if (e.csize >= MAX || e.size >= MAX) {
+            writeLong(e.csize);
+            writeLong(e.size);
+        } else {
+            writeInt(e.csize);
+            writeInt(e.size);
+        }
+    }
+    
+    /**
+     * Writes the central directory and closes the stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (zip != null) {
+            zip.close();
+            return;
+        }
+        try {
+            closeEntry();
+            long start = written;
+            for (Entry e : entries)
+                writeCentral(e);
+            long size = written - start;
+            int count = entries.size();
+            if (count >= MAX_COUNT || size >= MAX || start >= MAX) {
+                long end64 = written;
+                writeInt(END64);
+                writeLong(44);
+                writeShort(45);
+                writeShort(45);
+                writeInt(0); // disk
+                writeInt(0); // disk of central directory
+                writeLong(count);
+                writeLong(count);
+                writeLong(size);
+                writeLong(start);
+                writeInt(LOCATOR64);
+                writeInt(0);
+                writeLong(end64);
+                writeInt(1); // disks
+            }
+            writeInt(END);
+            writeShort(0);
+            writeShort(0);
+            writeShort(Math.min(count, MAX_COUNT));
+            writeShort(Math.min(count, MAX_COUNT));
+            writeInt(Math.min(size, MAX));
+            writeInt(Math.min(start, MAX));
+            writeShort(0);
+            out.close();
+        } finally {
+            if (deflater != null)
+                deflater.end();
+            for (Archive archive : archives.values())
+                archive.file.close();
+        }
+    }
+    
+    private Entry entry(ZipEntry entry) throws IOException {
+        Entry e = new Entry();
+        e.name = entry.getName().getBytes("UTF-8");
+        if (e.name.length != entry.getName().length())
+            e.flags |= FLAG_UTF8;
+        e.extra = withoutZip64(entry.getExtra());
+        e.time = dosTime(entry.getTime());
+        e.offset = written;
+        entries.add(e);
+        return e;
+    }
+    
+    /**
+     * Removes the zip64 field from extra data, since it is written anew
+     * for the sizes and offset in this file.
+     */
+    private static byte[] withoutZip64(byte[] extra) {
+        if (extra == null)
+            return new byte[0];
+        ByteBuffer bb = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer result = ByteBuffer.allocate(extra.length);
+        int pos = 0;
+        while (pos + 4 <= extra.length) {
+            int id = bb.getShort(pos) & 0xffff;
+            int length = bb.getShort(pos + 2) & 0xffff;
+            if (pos + 4 + length > extra.length)
+                break;
+            if (id != EXTRA64)
+                result.put(extra, pos, 4 + length);
+            pos += 4 + length;
+        }
+        if (pos != extra.length || result.position() == extra.length)
+            return extra;
+        byte[] b = new byte[result.position()];
+        result.flip();
+        result.get(b);
+        return b;
+    }
+    
+    /**
+     * Writes a local header. A deflated entry has no CRC or sizes yet when
+     * its local header is written; they follow in a data descriptor.
+     * Sizes known to need 8 bytes go in a zip64 field.
+     */
+    private void writeLocal(Entry e) throws IOException {
+        boolean descriptor = (e.flags & FLAG_DESCRIPTOR) != 0;
+        boolean zip64 = !descriptor && (e.csize >= MAX || e.size >= MAX);
+        writeInt(LOCAL);
+        writeShort(zip64 ? 45 : 20);
+        writeShort(e.flags);
+        writeShort(e.method);
+        writeInt(e.time);
+        writeInt(descriptor ? 0 : e.crc);
+        writeInt(descriptor ? 0 : zip64 ? MAX : e.csize);
+        writeInt(descriptor ? 0 : zip64 ? MAX : e.size);
+        writeShort(e.name.length);
+        writeShort(e.extra.length + (zip64 ? 20 : 0));
+        writeBytes(e.name);
+        writeBytes(e.extra);
+        if (zip64) {
+            writeShort(EXTRA64);
+            writeShort(16);
+            writeLong(e.size);
+            writeLong(e.csize);
+        }
+    }
+    
+    /**
+     * Writes a central directory record. Sizes and offset too large for
+     * 4 bytes go in a zip64 field, in that order.
+     */
+    private void writeCentral(Entry e) throws IOException {
+        int zip64 = (e.size >= MAX ? 8 : 0) + (e.csize >= MAX ? 8 : 0) + (e.offset >= MAX ? 8 : 0);
+        int version = zip64 > 0 ? 45 : 20;
+        writeInt(CENTRAL);
+        writeShort(version);
+        writeShort(version);
+        writeShort(e.flags);
+        writeShort(e.method);
+        writeInt(e.time);
+        writeInt(e.crc);
+        writeInt(Math.min(e.csize, MAX));
+        writeInt(Math.min(e.size, MAX));
+        writeShort(e.name.length);
+        writeShort(e.extra.length + (zip64 > 0 ? 4 + zip64 : 0));
+        writeShort(0); // comment
+        writeShort(0); // disk
+        writeShort(0); // internal attributes
+        writeInt(0); // external attributes
+        writeInt(Math.min(e.offset, MAX));
+        writeBytes(e.name);
+        writeBytes(e.extra);
+        if (zip64 > 0) {
+            writeShort(EXTRA64);
+            writeShort(zip64);
+            if (e.size >= MAX)
+                writeLong(e.size);
+            if (e.csize >= MAX)
+                writeLong(e.csize);
+            if (e.offset >= MAX)
+                writeLong(e.offset);
+        }
+    }
+    
+    private void writeShort(int v) throws IOException {
+        out.write(v);
+        out.write(v >>> 8);
+        written += 2;
+    }
+    
+    private void writeInt(long v) throws IOException {
+        writeShort((int) v & 0xffff);
+        writeShort((int) (v >>> 16) & 0xffff);
+    }
+    
+    private void writeLong(long v) throws IOException {
+        writeInt(v & MAX);
+        writeInt(v >>> 32);
+    }
+    
+    private void writeBytes(byte[] b) throws IOException {
+        out.write(b);
+        written += b.length;
+    }
+    
+    private static long dosTime(long time) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time == -1 ? System.currentTimeMillis() : time);
+        int year = c.get(Calendar.YEAR);
+        if (year < 1980)
+            return (1 << 21) | (1 << 16);
+        return (year - 1980) << 25 | (c.get(Calendar.MONTH) + 1) << 21 | c.get(Calendar.DAY_OF_MONTH) << 16
+            | c.get(Calendar.HOUR_OF_DAY) << 11 | c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+    }
+    
+    private Archive archive(ZipFile from) throws IOException {
+        Archive archive = archives.get(from);
+        if (archive == null) {
+            archive = new Archive(new File(from.getName()));
+            archives.put(from, archive);
+        }
+        return archive.offsets == null ? null : archive;
+    }
+    
+    /**
+     * Where the data of an entry starts, and the flags it was written with.
+     */
+    private static class Local {
+        long offset;
+        int flags;
+    }
+    
+    /**
+     * Finds the data of entries in a zip file from its central directory.
+     */
+    private static class Archive {
+        
+        final RandomAccessFile file;
+        
+        /**
+         * Local header offsets by name, or null if the central directory
+         * could not be read.
+         */
+        final Map<String, Long> offsets;
+        
+        Archive(File f) throws IOException {
+            file = new RandomAccessFile(f, "r");
+            offsets = readCentral();
+        }
+        
+        private Map<String, Long> readCentral() throws IOException {
+            long length = file.length();
+            int tail = (int) Math.min(length, 0xffff + 22);
+            ByteBuffer bb = read(length - tail, tail);
+            int end = -1;
+            for (int i = tail - 22; i >= 0; i--) {
+                if (bb.getInt(i) == END) {
+                    end = i;
+                    break;
+                }
+            }
+            if (end < 0)
+                return null;
+            long count = bb.getShort(end + 10) & 0xffff;
+            long size = bb.getInt(end + 12) & MAX;
+            long start = bb.getInt(end + 16) & MAX;
+            if ((count == MAX_COUNT || size == MAX || start == MAX)
+                    && end >= 20 && bb.getInt(end - 20) == LOCATOR64) {
+                long end64 = bb.getLong(end - 12);
+                if (end64 < 0 || end64 > length - 56)
+                    return null;
+                ByteBuffer bb64 = read(end64, 56);
+                if (bb64.getInt(0) != END64)
+                    return null;
+                count = bb64.getLong(32);
+                size = bb64.getLong(40);
+                start = bb64.getLong(48);
+            }
+            if (count < 0 || size < 0 || start < 0 || size > Integer.MAX_VALUE || start + size > length)
+                return null;
+            bb = read(start, (int) size);
+            Map<String, Long> offsets = new HashMap<String, Long>();
+            int pos = 0;
+            for (int i = 0; i < count; i++) {
+                if (pos + 46 > bb.limit() || bb.getInt(pos) != CENTRAL)
+                    return null;
+                int nameLength = bb.getShort(pos + 28) & 0xffff;
+                int extraLength = bb.getShort(pos + 30) & 0xffff;
+                int commentLength = bb.getShort(pos + 32) & 0xffff;
+                long offset = bb.getInt(pos + 42) & MAX;
+                if (pos + 46 + nameLength + extraLength > bb.limit())
+                    return null;
+                if (offset == MAX) {
+                    offset = zip64Offset(bb, pos, pos + 46 + nameLength, extraLength);
+                    if (offset < 0)
+                        return null;
+                }
+                String name = new String(bb.array(), pos + 46, nameLength, "UTF-8");
+                offsets.put(name, Long.valueOf(offset));
+                pos += 46 + nameLength + extraLength + commentLength;
+            }
+            return offsets;
+        }
+        
+        /**
+         * Returns the local header offset from the zip64 field of a central
+         * directory record, or -1 if there is none. The field holds the
+         * sizes first, but only those too large for the record itself.
+         */
+        private static long zip64Offset(ByteBuffer bb, int central, int extra, int extraLength) {
+            int field = 0;
+            if ((bb.getInt(central + 24) & MAX) == MAX)
+                field += 8;
+            if ((bb.getInt(central + 20) & MAX) == MAX)
+                field += 8;
+            for (int pos = extra; pos + 4 <= extra + extraLength; ) {
+                int id = bb.getShort(pos) & 0xffff;
+                int length = bb.getShort(pos + 2) & 0xffff;
+                if (id == EXTRA64)
+                    return field + 8 <= length && pos + 4 + length <= extra + extraLength
+                        ? bb.getLong(pos + 4 + field) : -1;
+                pos += 4 + length;
+            }
+            return -1;
+        }
+        
+        private ByteBuffer read(long pos, int length) throws IOException {
+            byte[] b = new byte[length];
+            file.seek(pos);
+            file.readFully(b);
+            return ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        
+        /**
+         * Reads the local header of an entry, or returns null if unknown.
+         */
+        Local local(String name) throws IOException {
+            Long offset = offsets.get(name);
+            if (offset == null || offset.longValue() > file.length() - 30)
+                return null;
+            ByteBuffer bb = read(offset.longValue(), 30);
+            if (bb.getInt(0) != LOCAL)
+                return null;
+            Local local = new Local();
+            local.flags = bb.getShort(6) & 0xffff;
+            local.offset = offset.longValue() + 30 + (bb.getShort(26) & 0xffff) + (bb.getShort(28) & 0xffff);
+            return local;
+        }
+    }
+
+}
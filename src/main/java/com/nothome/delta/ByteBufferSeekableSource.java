@@ -69,11 +69,11 @@ public class ByteBufferSeekableSource implements SeekableSource {
     public int read(ByteBuffer dest) throws IOException {
         if (!cur.hasRemaining())
             return -1;
-        int c = 0;
-        while (cur.hasRemaining() && dest.hasRemaining()) {
-            dest.put(cur.get());
-            c++;
-        }
+        int c = Math.min(cur.remaining(), dest.remaining());
+        ByteBuffer src = cur.duplicate();
+        src.limit(src.position() + c);
+        dest.put(src);
+        cur.position(cur.position() + c);
         return c;
     }
     
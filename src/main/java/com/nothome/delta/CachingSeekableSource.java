@@ -0,0 +1,213 @@
+/*
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package com.nothome.delta;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches another source in aligned pages, evicting the least recently
+ * used page once the memory budget is reached.
+ * <p>
+ * This turns the seek and small read {@link Delta} makes for every
+ * candidate match into a lookup when the page was read before. A miss
+ * right after a miss on the previous page is taken as sequential reading,
+ * and the following pages are then read along with it, see
+ * {@link #setReadAhead(int)}.
+ * <p>
+ * Example use:
+ <pre>
+ SeekableSource source = new CachingSeekableSource(
+     new RandomAccessFileSeekableSource(new RandomAccessFile(file, "r")));
+ new Delta().compute(source, targetStream, diffWriter);
+ </pre>
+ */
+public class CachingSeekableSource implements SeekableSource {
+    
+    /**
+     * Default page size of 16KB.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 1 << 14;
+    
+    /**
+     * Default memory budget of 16MB.
+     */
+    public static final long DEFAULT_BUDGET = 1 << 24;
+    
+    /**
+     * Most bytes read at once with read-ahead, 4MB.
+     */
+    private static final int MAX_READ = 1 << 22;
+    
+    private final SeekableSource source;
+    private final int pageSize;
+    private final int maxPages;
+    private final Map<Long, byte[]> pages;
+    private int readAhead = 0;
+    
+    private long pos;
+    private long lastMiss = -2;
+    private long eof = Long.MAX_VALUE;
+    private ByteBuffer buf;
+    
+    private long hits;
+    private long misses;
+    
+    /**
+     * Constructs a new CachingSeekableSource with the default page size
+     * and budget.
+     */
+    public CachingSeekableSource(SeekableSource source) {
+        this(source, DEFAULT_PAGE_SIZE, DEFAULT_BUDGET);
+    }
+    
+    /**
+     * Constructs a new CachingSeekableSource.
+     * 
+     * @param source source to cache; closed by {@link #close()}
+     * @param pageSize bytes per page
+     * @param budget bytes of pages held at most
+     */
+    public CachingSeekableSource(SeekableSource source, int pageSize, long budget) {
+        if (source == null)
+            throw new NullPointerException("source");
+        if (pageSize <= 0 || budget < pageSize)
+            throw new IllegalArgumentException("Invalid size");
+        this.source = source;
+        this.pageSize = pageSize;
+        this.maxPages = (int) Math.min(Integer.MAX_VALUE, budget / pageSize);
+        pages = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1;
+            
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                return size() > maxPages;
+            }
+        };
+    }
+    
+    /**
+     * Sets how many pages to read beyond a miss when reading is
+     * sequential; 0, the default, disables read-ahead. At most 4MB, or
+     * one page if larger, are read at once.
+     */
+    public void setReadAhead(int pages) {
+        if (pages < 0)
+            throw new IllegalArgumentException("Invalid pages");
+        readAhead = pages;
+    }
+    
+    /**
+     * Returns how many page lookups were found in the cache.
+     */
+    public long getHits() {
+        return hits;
+    }
+    
+    /**
+     * Returns how many page lookups read the underlying source.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    public void seek(long pos) throws IOException {
+        if (pos < 0)
+            throw new IOException("Negative seek " + pos);
+        this.pos = pos;
+    }
+
+    public int read(ByteBuffer bb) throws IOException {
+        int start = bb.position();
+        while (bb.hasRemaining() && pos < eof) {
+            long index = pos / pageSize;
+            byte page[] = page(index);
+            int off = (int) (pos - index * pageSize);
+            if (off >= page.length)
+                break;
+            int n = Math.min(bb.remaining(), page.length - off);
+            bb.put(page, off, n);
+            pos += n;
+            if (page.length < pageSize)
+                break;
+        }
+        int n = bb.position() - start;
+        return n == 0 && bb.remaining() > 0 ? -1 : n;
+    }
+    
+    /**
+     * Returns a page, short if it is the last of the source.
+     */
+    private byte[] page(long index) throws IOException {
+        byte page[] = pages.get(index);
+        if (page != null) {
+            hits++;
+            return page;
+        }
+        misses++;
+        int count = 1;
+        if (index == lastMiss + 1)
+            count += Math.min(readAhead, Math.min(maxPages, Math.max(1, MAX_READ / pageSize)) - 1);
+        lastMiss = index + count - 1;
+        
+        long start = index * pageSize;
+        int length = (int) Math.min((long) count * pageSize, Integer.MAX_VALUE);
+        if (buf == null || buf.capacity() < length)
+            buf = ByteBuffer.allocate(length);
+        buf.clear().limit(length);
+        source.seek(start);
+        while (buf.hasRemaining()) {
+            if (source.read(buf) < 0) {
+                eof = start + buf.position();
+                break;
+            }
+        }
+        buf.flip();
+        byte first[] = null;
+        for (long i = index; i < index + count && (i == index || buf.hasRemaining()); i++) {
+            page = new byte[Math.min(pageSize, buf.remaining())];
+            buf.get(page);
+            if (first == null)
+                first = page;
+            else if (pages.containsKey(i))
+                continue;
+            pages.put(i, page);
+        }
+        return first;
+    }
+    
+    /**
+     * Closes the source and drops the cache.
+     */
+    public void close() throws IOException {
+        pages.clear();
+        source.close();
+    }
+    
+    @Override
+    public String toString() {
+        return "CachingSeekableSource hits=" + hits + " misses=" + misses + " " + source;
+    }
+
+}
@@ -25,20 +25,54 @@
 
 package com.nothome.delta;
 
-import gnu.trove.TLongIntHashMap;
-import gnu.trove.decorator.TLongIntHashMapDecorator;
-
+import java.io.DataOutput;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
 /**
  * Checksum computation class.
+ * <p>
+ * Source blocks are kept in a chained hash index, so every block sharing
+ * a checksum can be found, not only the last one inserted.
+ * Instances are not modified after construction and may be read by
+ * several threads. The index may also be memory-mapped from a file
+ * written by {@link SourceIndex#write(java.io.File)}.
  */
 public class Checksum {
     
     static final boolean debug = false;
     
-    private TLongIntHashMap checksums = new TLongIntHashMap();
+    /**
+     * Bytes read from the source at a time while indexing.
+     */
+    private static final int READ_SIZE = 1024 * 64;
+    
+    /**
+     * Checksum per block.
+     */
+    private final IntBuffer hashes;
+    
+    /**
+     * Next (lower) block in the same bucket, or -1.
+     */
+    private final IntBuffer next;
+    
+    /**
+     * Highest block per bucket, or -1.
+     */
+    private final IntBuffer buckets;
+    
+    private final int count;
+    
+    private final int mask;
+    
+    /**
+     * Length of the source.
+     */
+    private final long length;
     
     private static final char single_hash[] = {
         /* Random numbers generated using SLIB's pseudo-random number generator. */
@@ -81,19 +115,135 @@ public class Checksum {
      * <code>chunkSize</code> * i is inserted into a hash map.
      */
     public Checksum(SeekableSource source, int chunkSize) throws IOException {
-        ByteBuffer bb = ByteBuffer.allocate(chunkSize * 2);
+        ByteBuffer bb = ByteBuffer.allocate(chunkSize * Math.max(2, READ_SIZE / chunkSize));
+        int hashes[] = new int[64];
         int count = 0;
+        long length = 0;
         while (true) {
-            source.read(bb);
+            while (bb.hasRemaining()) {
+                int read = source.read(bb);
+                if (read <= 0)
+                    break;
+                length += read;
+            }
             bb.flip();
             if (bb.remaining() < chunkSize)
                 break;
             while (bb.remaining() >= chunkSize) {
-                long queryChecksum = queryChecksum0(bb, chunkSize);
-                checksums.put(queryChecksum, count++);
+                if (count == hashes.length) {
+                    int grown[] = new int[count * 2];
+                    System.arraycopy(hashes, 0, grown, 0, count);
+                    hashes = grown;
+                }
+                hashes[count++] = (int) queryChecksum0(bb, chunkSize);
             }
             bb.compact();
         }
+        int size = 1;
+        while (size < count && size < (1 << 30))
+            size <<= 1;
+        int buckets[] = new int[size];
+        Arrays.fill(buckets, -1);
+        int next[] = new int[count];
+        this.mask = size - 1;
+        for (int i = 0; i < count; i++) {
+            int b = bucket(hashes[i]);
+            next[i] = buckets[b];
+            buckets[b] = i;
+        }
+        this.hashes = IntBuffer.wrap(hashes, 0, count);
+        this.next = IntBuffer.wrap(next);
+        this.buckets = IntBuffer.wrap(buckets);
+        this.count = count;
+        this.length = length;
+    }
+    
+    private Checksum(IntBuffer hashes, IntBuffer next, IntBuffer buckets, long length) {
+        this.hashes = hashes;
+        this.next = next;
+        this.buckets = buckets;
+        this.count = hashes.limit();
+        this.mask = buckets.limit() - 1;
+        this.length = length;
+    }
+    
+    /**
+     * Writes the index; the reverse of {@link #map(FileChannel, long, long)}.
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(count);
+        out.writeInt(buckets.limit());
+        for (int i = 0; i < count; i++)
+            out.writeInt(hashes.get(i));
+        for (int i = 0; i < count; i++)
+            out.writeInt(next.get(i));
+        for (int i = 0; i < buckets.limit(); i++)
+            out.writeInt(buckets.get(i));
+    }
+    
+    /**
+     * Maps an index written by {@link #write(DataOutput)} at the file position.
+     * The block indices are checked, so a corrupt file cannot cause an
+     * out of range index or a cycle in a bucket.
+     * 
+     * @param length length of the indexed source
+     * @throws IOException if the index is truncated or corrupt
+     */
+    static Checksum map(FileChannel fc, long pos, long length) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        while (header.hasRemaining())
+            if (fc.read(header, pos + header.position()) == -1)
+                throw new IOException("truncated index");
+        header.flip();
+        int count = header.getInt();
+        int size = header.getInt();
+        if (count < 0 || size <= 0 || (size & (size - 1)) != 0)
+            throw new IOException("invalid index " + count + " " + size);
+        pos += 8;
+        long hashesLength = count * 4L;
+        long bucketsLength = size * 4L;
+        if (fc.size() < pos + hashesLength * 2 + bucketsLength)
+            throw new IOException("truncated index");
+        IntBuffer hashes = mapInts(fc, pos, hashesLength);
+        IntBuffer next = mapInts(fc, pos + hashesLength, hashesLength);
+        IntBuffer buckets = mapInts(fc, pos + hashesLength * 2, bucketsLength);
+        // each block links to a lower one, so following them ends
+        for (int i = 0; i < count; i++) {
+            int n = next.get(i);
+            if (n < -1 || n >= i)
+                throw new IOException("invalid index link " + n + " of block " + i);
+        }
+        for (int i = 0; i < size; i++) {
+            int b = buckets.get(i);
+            if (b < -1 || b >= count)
+                throw new IOException("invalid index bucket " + b);
+        }
+        return new Checksum(hashes, next, buckets, length);
+    }
+    
+    private static IntBuffer mapInts(FileChannel fc, long pos, long size) throws IOException {
+        if (size == 0)
+            return IntBuffer.allocate(0);
+        return fc.map(FileChannel.MapMode.READ_ONLY, pos, size).asIntBuffer();
+    }
+    
+    private int bucket(int hash) {
+        int h = hash * 0x9E3779B1;
+        return (h ^ (h >>> 16)) & mask;
+    }
+    
+    /**
+     * Returns the number of blocks indexed.
+     */
+    int count() {
+        return count;
+    }
+    
+    /**
+     * Returns the number of bytes indexed, including any final partial block.
+     */
+    long length() {
+        return length;
     }
     
     /**
@@ -141,11 +291,31 @@ public class Checksum {
 
     /**
      * Finds the index of a checksum.
+     * If several blocks share the checksum, the highest index is returned;
+     * use {@link #nextChecksumIndex(int)} to visit the others.
+     * 
+     * @return block index, or -1 if not found
      */
     public int findChecksumIndex(long hashf) {
-        if (!checksums.contains(hashf))
-            return -1;
-        return checksums.get(hashf);
+        int hash = (int) hashf;
+        int i = buckets.get(bucket(hash));
+        while (i != -1 && hashes.get(i) != hash)
+            i = next.get(i);
+        return i;
+    }
+    
+    /**
+     * Returns the next lower block index with the same checksum as the
+     * block at <code>index</code>.
+     * 
+     * @return block index, or -1 if there are no more candidates
+     */
+    public int nextChecksumIndex(int index) {
+        int hash = hashes.get(index);
+        int i = next.get(index);
+        while (i != -1 && hashes.get(i) != hash)
+            i = next.get(i);
+        return i;
     }
 
     /**
@@ -155,7 +325,7 @@ public class Checksum {
     public String toString()
     {
         return super.toString() +
-            " checksums=" + new TLongIntHashMapDecorator(this.checksums) +
+            " blocks=" + this.count +
             "";
     }
     
@@ -27,6 +27,7 @@ package com.nothome.delta;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * For debugging patch generation.
@@ -50,6 +51,18 @@ public class DebugDiffWriter implements DiffWriter {
         os.write(b);
         writeBuf();
     }
+    
+    public void addData(byte[] b, int off, int len) throws IOException {
+        os.write(b, off, len);
+        writeBuf();
+    }
+    
+    public void addData(ByteBuffer bb) throws IOException {
+        while (bb.hasRemaining())
+            os.write(bb.get());
+        writeBuf();
+    }
+    
     private void writeBuf() {
         System.err.print("DATA: ");
         byte[] ba = os.toByteArray();
@@ -34,13 +34,10 @@
 
 package com.nothome.delta;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -55,7 +52,10 @@ import java.nio.channels.ReadableByteChannel;
  * The source file is read by blocks and a hash is computed per block.
  * Then the target is scanned for matching blocks.
  * <p/>
- * This class is not thread safe. Use one instance per thread.
+ * Each call to compute keeps its state to itself, so a configured instance
+ * may be shared by threads as long as its settings are not changed.
+ * To compute many deltas against one source, build a {@link SourceIndex}
+ * once and pass it to {@link #compute(SourceIndex, SeekableSource, InputStream, DiffWriter)}.
  * <p/>
  * This class should support files over 4GB in length, although you must
  * use a larger checksum size, such as 1K, as all checksums use "int" indexing.
@@ -77,14 +77,30 @@ public class Delta {
      */
     public static final int DEFAULT_CHUNK_SIZE = 1<<4;
     
+    /**
+     * Default number of source blocks sharing a checksum that are compared
+     * with the target before choosing the longest match.
+     */
+    public static final int DEFAULT_MAX_CANDIDATES = 8;
+    
+    /**
+     * Longest single copy; longer matches continue as another copy.
+     */
+    static final int MAX_MATCH = Integer.MAX_VALUE - 1024 * 64;
+    
+    /**
+     * Number of bytes compared at a time when matching prefix and suffix.
+     */
+    private static final int COMPARE_SIZE = 1024 * 64;
+    
     /**
      * Chunk Size.
      */
     private int S;
     
-    private SourceState source;
-    private TargetState target;
-    private DiffWriter output;
+    private int maxCandidates = DEFAULT_MAX_CANDIDATES;
+    
+    private int targetWindow;
     
     /**
      * Constructs a new Delta.
@@ -107,14 +123,66 @@ public class Delta {
         S = size;
     }
     
+    /**
+     * Returns the chunk size used.
+     */
+    public int getChunkSize() {
+        return S;
+    }
+    
+    /**
+     * Sets the maximum number of source blocks with an equal checksum
+     * that are tried for each hash hit. The longest of the candidate
+     * matches is copied. A value of 1 only tries the most recent block.
+     * 
+     * @param max
+     */
+    public void setMaxCandidates(int max) {
+        if (max <= 0)
+            throw new IllegalArgumentException("Invalid max");
+        maxCandidates = max;
+    }
+    
+    /**
+     * Allows copies from the target bytes already written, at most
+     * <code>size</code> bytes back. This finds repetition within new data,
+     * such as a repeated table or runs of zeros.
+     * <p>
+     * Such copies address the target after the source: offset
+     * <code>sourceLength + n</code> is byte <code>n</code> of the target.
+     * They require a writer for that format, see
+     * {@link GDiffWriter#GDiffWriter(OutputStream, long, int)};
+     * the byte array methods choose it themselves.
+     * 
+     * @param size history size; 0, the default, disables target copies
+     */
+    public void setTargetWindow(int size) {
+        if (size < 0)
+            throw new IllegalArgumentException("Invalid size");
+        targetWindow = size;
+    }
+    
+    /**
+     * Returns the target history size for copies, or 0 if disabled.
+     */
+    public int getTargetWindow() {
+        return targetWindow;
+    }
+    
     /**
      * Compares the source bytes with target bytes, writing to output.
      */
     public void compute(byte source[], byte target[], OutputStream output)
     throws IOException {
-        compute(new ByteBufferSeekableSource(source), 
-                new ByteArrayInputStream(target),
-                new GDiffWriter(output));
+        compute(new ByteBufferSeekableSource(source), source.length,
+                new ByteBufferSeekableSource(target), target.length,
+                newWriter(output, source.length));
+    }
+    
+    private GDiffWriter newWriter(OutputStream output, long sourceLength) throws IOException {
+        if (targetWindow > 0)
+            return new GDiffWriter(output, sourceLength, targetWindow);
+        return new GDiffWriter(output);
     }
     
     /**
@@ -145,30 +213,232 @@ public class Delta {
     public void compute(File sourceFile, File targetFile, DiffWriter output)
     throws IOException {
         RandomAccessFileSeekableSource source = new RandomAccessFileSeekableSource(new RandomAccessFile(sourceFile, "r"));
-        InputStream is = new BufferedInputStream(new FileInputStream(targetFile));
         try {
-            compute(source, is, output);
+            RandomAccessFileSeekableSource target = new RandomAccessFileSeekableSource(new RandomAccessFile(targetFile, "r"));
+            try {
+                compute(source, source.length(), target, target.length(), output);
+            } finally {
+                target.close();
+            }
+        } finally {
+            source.close();
+        }
+    }
+    
+    /**
+     * Compares the source file with a target file, writing to output.
+     * The source checksums are memory-mapped from the signature file if
+     * it was written for the same source data and chunk size. Otherwise the
+     * source is indexed and the signature file is written for the next run.
+     * 
+     * @param signatureFile signature of the source, need not exist
+     * @param output will be closed
+     * @see SourceIndex#load(File, SeekableSource, long)
+     */
+    public void compute(File sourceFile, File signatureFile, File targetFile, DiffWriter output)
+    throws IOException {
+        RandomAccessFileSeekableSource source = new RandomAccessFileSeekableSource(new RandomAccessFile(sourceFile, "r"));
+        try {
+            RandomAccessFileSeekableSource target = new RandomAccessFileSeekableSource(new RandomAccessFile(targetFile, "r"));
+            try {
+                compute(sourceFile, signatureFile, source, target, output);
+            } finally {
+                target.close();
+            }
         } finally {
             source.close();
-            is.close();
         }
     }
     
+    private void compute(File sourceFile, File signatureFile,
+            RandomAccessFileSeekableSource source, RandomAccessFileSeekableSource target, DiffWriter output)
+    throws IOException {
+        long sourceLength = source.length();
+        long targetLength = target.length();
+        long prefix = matchPrefix(source, target, Math.min(sourceLength, targetLength));
+        long suffix = matchSuffix(source, sourceLength, target, targetLength,
+                Math.min(sourceLength, targetLength) - prefix);
+        SourceIndex index = null;
+        if (prefix + suffix < targetLength) {
+            if (signatureFile.exists())
+                index = SourceIndex.load(signatureFile, source, sourceLength);
+            if (index == null || index.getChunkSize() != S) {
+                if (debug)
+                    debug("indexing " + sourceFile);
+                source.seek(0);
+                index = new SourceIndex(source, S);
+                index.write(signatureFile);
+            }
+        }
+        compute(index, source, sourceLength, prefix, suffix, target, targetLength, output);
+    }
+    
     /**
      * Compares the source with a target, writing to output.
      * 
      * @param output will be closed
      */
     public void compute(SeekableSource seekSource, InputStream targetIS, DiffWriter output)
+    throws IOException {
+        compute(new SourceIndex(seekSource, S), seekSource, targetIS, output);
+    }
+    
+    /**
+     * Compares an indexed source with a target, writing to output.
+     * The chunk size of the index is used, not the one set on this instance.
+     * <p>
+     * The index may be shared between concurrent calls, but each call needs
+     * its own {@link SeekableSource} over the indexed data.
+     * 
+     * @param sourceIndex checksums of the source
+     * @param seekSource the data <code>sourceIndex</code> was built from
+     * @param output will be closed
+     */
+    public void compute(SourceIndex sourceIndex, SeekableSource seekSource, InputStream targetIS, DiffWriter output)
+    throws IOException {
+        scan(sourceIndex, seekSource, targetIS, 0, output);
+        output.close();
+    }
+    
+    /**
+     * Compares a source with a target that can be read at random, writing
+     * to output. The common prefix and suffix of both are found first and
+     * written as copies; only the bytes between them are searched for
+     * matches. The source is not indexed if nothing is left in between.
+     * 
+     * @param output will be closed
+     */
+    public void compute(SeekableSource seekSource, long sourceLength,
+            SeekableSource target, long targetLength, DiffWriter output)
+    throws IOException {
+        long prefix = matchPrefix(seekSource, target, Math.min(sourceLength, targetLength));
+        long suffix = matchSuffix(seekSource, sourceLength, target, targetLength,
+                Math.min(sourceLength, targetLength) - prefix);
+        SourceIndex index = null;
+        if (prefix + suffix < targetLength) {
+            seekSource.seek(0);
+            index = new SourceIndex(seekSource, S);
+        }
+        compute(index, seekSource, sourceLength, prefix, suffix, target, targetLength, output);
+    }
+    
+    /**
+     * Writes the prefix copy, the scanned middle and the suffix copy.
+     * 
+     * @param sourceIndex may be null if the middle is empty
+     */
+    private void compute(SourceIndex sourceIndex, SeekableSource seekSource, long sourceLength,
+            long prefix, long suffix, SeekableSource target, long targetLength, DiffWriter output)
+    throws IOException {
+        if (debug)
+            debug("prefix " + prefix + " suffix " + suffix);
+        addCopy(output, 0, prefix);
+        long middle = targetLength - prefix - suffix;
+        if (middle > 0)
+            scan(sourceIndex, seekSource, new SourceInputStream(target, prefix, middle), prefix, output);
+        addCopy(output, sourceLength - suffix, suffix);
+        output.close();
+    }
+    
+    /**
+     * Writes a copy of any length, split into copies of at most
+     * {@link #MAX_MATCH} bytes.
+     */
+    private static void addCopy(DiffWriter output, long offset, long length) throws IOException {
+        while (length > 0) {
+            int len = (int) Math.min(length, MAX_MATCH);
+            output.addCopy(offset, len);
+            offset += len;
+            length -= len;
+        }
+    }
+    
+    /**
+     * Returns the number of leading bytes source and target have in common,
+     * at most <code>max</code>.
+     */
+    static long matchPrefix(SeekableSource source, SeekableSource target, long max)
+    throws IOException {
+        ByteBuffer a = ByteBuffer.allocate(COMPARE_SIZE);
+        ByteBuffer b = ByteBuffer.allocate(COMPARE_SIZE);
+        long match = 0;
+        while (match < max) {
+            int len = (int) Math.min(COMPARE_SIZE, max - match);
+            readFully(source, match, a, len);
+            readFully(target, match, b, len);
+            int m = mismatch(a, 0, b, 0, len);
+            match += m;
+            if (m < len)
+                break;
+        }
+        return match;
+    }
+    
+    /**
+     * Returns the number of trailing bytes source and target have in common,
+     * at most <code>max</code>.
+     */
+    static long matchSuffix(SeekableSource source, long sourceLength,
+            SeekableSource target, long targetLength, long max)
+    throws IOException {
+        ByteBuffer a = ByteBuffer.allocate(COMPARE_SIZE);
+        ByteBuffer b = ByteBuffer.allocate(COMPARE_SIZE);
+        long match = 0;
+        while (match < max) {
+            int len = (int) Math.min(COMPARE_SIZE, max - match);
+            readFully(source, sourceLength - match - len, a, len);
+            readFully(target, targetLength - match - len, b, len);
+            int m = mismatchBackward(a, b, len);
+            match += m;
+            if (m < len)
+                break;
+        }
+        return match;
+    }
+    
+    private static void readFully(SeekableSource source, long pos, ByteBuffer bb, int len)
+    throws IOException {
+        bb.clear().limit(len);
+        source.seek(pos);
+        while (bb.hasRemaining())
+            if (source.read(bb) <= 0)
+                throw new IOException("source ended at " + (pos + bb.position()));
+    }
+    
+    /**
+     * Returns the number of equal bytes at the end of the first
+     * <code>len</code> bytes of both buffers.
+     */
+    static int mismatchBackward(ByteBuffer a, ByteBuffer b, int len) {
+        int i = 0;
+        for (; i + 8 <= len; i += 8) {
+            long x = a.getLong(len - 8 - i) ^ b.getLong(len - 8 - i);
+            if (x != 0)
+                return i + (Long.numberOfTrailingZeros(x) >>> 3);
+        }
+        while (i < len && a.get(len - 1 - i) == b.get(len - 1 - i))
+            i++;
+        return i;
+    }
+    
+    /**
+     * Searches the target for matches in the source, writing to output.
+     * 
+     * @param targetStart position of the stream in the target
+     */
+    private void scan(SourceIndex sourceIndex, SeekableSource seekSource, InputStream targetIS,
+            long targetStart, DiffWriter output)
     throws IOException {
         
+        int S = sourceIndex.getChunkSize();
         if (debug) {
             debug("using match length S = " + S);
         }
         
-        source = new SourceState(seekSource);
-        target = new TargetState(targetIS);
-        this.output = output;
+        SourceState source = new SourceState(sourceIndex, seekSource);
+        TargetState target = new TargetState(targetIS, S);
+        if (targetWindow > 0)
+            target.history = new TargetHistory(targetWindow, S, targetStart);
         if (debug)
             debug("checksums " + source.checksum);
         
@@ -178,41 +448,106 @@ public class Delta {
             if (index != -1) {
                 if (debug)
                     debug("found hash " + index);
+                index = target.bestCandidate(source, index, maxCandidates);
                 long offset = (long)index * S;
                 source.seek(offset);
                 int match = target.longestMatch(source);
                 if (match >= S) {
+                    int back = matchBackward(source, target, offset, MAX_MATCH - match);
+                    offset -= back;
+                    match += back;
                     if (debug)
                         debug("output.addCopy("+offset+","+match+")");
+                    flushData(target, output);
                     output.addCopy(offset, match);
                 } else {
                     // move the position back according to how much we can't copy
-                    target.tbuf.position(target.tbuf.position() - match);
-                    addData();
+                    target.unread(match);
+                    if (!targetCopy(source, target, output))
+                        addData(target, output);
                 }
-            } else {
-                addData();
+            } else if (!targetCopy(source, target, output)) {
+                addData(target, output);
             }
         }
-        output.close();
+        flushData(target, output);
     }
     
-    private void addData() throws IOException {
+    /**
+     * Copies from the target history if the next bytes repeat it.
+     * 
+     * @return true if a copy was written
+     */
+    private boolean targetCopy(SourceState source, TargetState target, DiffWriter output)
+    throws IOException {
+        if (target.history == null || target.hashReset)
+            return false;
+        long pos = target.history.find(target.hash);
+        if (pos == -1)
+            return false;
+        int match = target.historyMatch(pos);
+        if (match < target.S)
+            return false;
+        if (debug)
+            debug("target copy " + pos + " " + match);
+        flushData(target, output);
+        output.addCopy(source.checksum.length() + pos, match);
+        return true;
+    }
+    
+    private void addData(TargetState target, DiffWriter output) throws IOException {
         int i = target.read();
         if (debug)
             debug("addData " + Integer.toHexString(i));
         if (i == -1)
             return;
-        output.addData((byte)i);
+        if (!target.data.hasRemaining())
+            flushData(target, output);
+        target.data.put((byte)i);
+    }
+    
+    /**
+     * Writes the pending data bytes to output in one call.
+     */
+    private void flushData(TargetState target, DiffWriter output) throws IOException {
+        ByteBuffer data = target.data;
+        data.flip();
+        if (data.hasRemaining())
+            output.addData(data);
+        data.clear();
+    }
+    
+    /**
+     * Extends a copy starting at the source offset backwards over the
+     * pending data bytes that also match the source.
+     * These bytes are taken back from the pending data.
+     * 
+     * @param limit most bytes the copy may grow by
+     * @return number of bytes the copy grew by
+     */
+    private int matchBackward(SourceState source, TargetState target, long offset, int limit) throws IOException {
+        ByteBuffer data = target.data;
+        int max = (int) Math.min(Math.min(data.position(), limit), offset);
+        if (max == 0)
+            return 0;
+        ByteBuffer bb = source.read(offset - max, max);
+        int back = 0;
+        while (back < max && bb.get(max - 1 - back) == data.get(data.position() - 1 - back))
+            back++;
+        data.position(data.position() - back);
+        if (debug)
+            debug("matchBackward " + back);
+        return back;
     }
     
     class SourceState {
 
         private Checksum checksum;
         private SeekableSource source;
+        private ByteBuffer bbuf;
         
-        public SourceState(SeekableSource source) throws IOException {
-            checksum = new Checksum(source, S);
+        public SourceState(SourceIndex index, SeekableSource source) throws IOException {
+            checksum = index.getChecksum();
             this.source = source;
             source.seek(0);
         }
@@ -221,6 +556,20 @@ public class Delta {
             source.seek(index);
         }
 
+        /**
+         * Reads up to <code>len</code> bytes at the offset; the returned
+         * buffer is reused between calls.
+         */
+        public ByteBuffer read(long offset, int len) throws IOException {
+            if (bbuf == null || bbuf.capacity() < len)
+                bbuf = ByteBuffer.allocate(len);
+            bbuf.clear().limit(len);
+            source.seek(offset);
+            while (bbuf.hasRemaining() && source.read(bbuf) != -1);
+            bbuf.flip();
+            return bbuf;
+        }
+
         /**
          * Returns a debug <code>String</code>.
          */
@@ -237,20 +586,35 @@ public class Delta {
         
     class TargetState {
         
+        private final int S;
         private ReadableByteChannel c;
-        private ByteBuffer tbuf = ByteBuffer.allocate(blocksize());
-        private ByteBuffer sbuf = ByteBuffer.allocate(blocksize());
+        private ByteBuffer tbuf;
+        private ByteBuffer sbuf;
+        
+        /**
+         * Data bytes not yet written to output.
+         */
+        private ByteBuffer data;
         private long hash;
         private boolean hashReset = true;
         private boolean eof;
         
-        TargetState(InputStream targetIS) throws IOException {
+        /**
+         * Bytes already processed, if target copies are enabled.
+         */
+        private TargetHistory history;
+        
+        TargetState(InputStream targetIS, int chunkSize) throws IOException {
+            S = chunkSize;
             c = Channels.newChannel(targetIS);
+            tbuf = ByteBuffer.allocate(blocksize());
+            sbuf = ByteBuffer.allocate(blocksize());
+            data = ByteBuffer.allocate(Math.max(blocksize(), 1024 * 4));
             tbuf.limit(0);
         }
         
         private int blocksize() {
-            return Math.min(1024 * 16, S * 4);
+            return Math.max(1024 * 64, S * 4);
         }
 
         /**
@@ -296,6 +660,11 @@ public class Delta {
                     return -1;
                 }
             }
+            if (history != null) {
+                if (!hashReset && tbuf.remaining() >= S)
+                    history.index(hash);
+                history.add(tbuf, tbuf.position(), 1);
+            }
             byte b = tbuf.get();
             if (tbuf.remaining() >= S) {
                 byte nchar = tbuf.get( tbuf.position() + S -1 );
@@ -306,6 +675,56 @@ public class Delta {
             return b & 0xFF;
         }
 
+        /**
+         * Returns the block, starting with <code>index</code>, whose
+         * source bytes match most of the buffered target.
+         * At most <code>maxCandidates</code> blocks are compared.
+         */
+        public int bestCandidate(SourceState source, int index, int maxCandidates) throws IOException {
+            int candidate = source.checksum.nextChecksumIndex(index);
+            if (candidate == -1)
+                return index;
+            fill();
+            int best = index;
+            int bestMatch = peekMatch(source, index);
+            for (int i = 1; i < maxCandidates && candidate != -1 && bestMatch < tbuf.remaining(); i++) {
+                int match = peekMatch(source, candidate);
+                if (debug)
+                    debug("candidate " + candidate + " match " + match);
+                if (match > bestMatch) {
+                    best = candidate;
+                    bestMatch = match;
+                }
+                candidate = source.checksum.nextChecksumIndex(candidate);
+            }
+            sbuf.clear();
+            sbuf.limit(0);
+            return best;
+        }
+
+        /**
+         * Returns how many buffered target bytes match the source block,
+         * without consuming the target.
+         */
+        private int peekMatch(SourceState source, int index) throws IOException {
+            source.seek((long)index * S);
+            int pos = tbuf.position();
+            int match = 0;
+            while (pos + match < tbuf.limit()) {
+                sbuf.clear();
+                sbuf.limit(Math.min(sbuf.capacity(), tbuf.limit() - pos - match));
+                int read = source.source.read(sbuf);
+                if (read == -1)
+                    break;
+                sbuf.flip();
+                int m = mismatch(sbuf, 0, tbuf, pos + match, read);
+                match += m;
+                if (m < read)
+                    break;
+            }
+            return match;
+        }
+
         /**
          * Returns the longest match length at the source location.
          */
@@ -313,7 +732,7 @@ public class Delta {
             debug("longestMatch");
             int match = 0;
             hashReset = true;
-            while (true) {
+            while (match < MAX_MATCH) {
                 if (!sbuf.hasRemaining()) {
                     sbuf.clear();
                     int read = source.source.read(sbuf);
@@ -322,21 +741,61 @@ public class Delta {
                         return match;
                 }
                 if (!tbuf.hasRemaining()) {
-                    readMore();
+                    fill();
                     if (!tbuf.hasRemaining()) {
                         debug("target ending");
                         eof = true;
                         return match;
                     }
                 }
-                if (sbuf.get() != tbuf.get()) {
-                    tbuf.position(tbuf.position() - 1);
+                int n = Math.min(Math.min(sbuf.remaining(), tbuf.remaining()), MAX_MATCH - match);
+                int m = mismatch(sbuf, sbuf.position(), tbuf, tbuf.position(), n);
+                sbuf.position(sbuf.position() + m);
+                if (history != null)
+                    history.add(tbuf, tbuf.position(), m);
+                tbuf.position(tbuf.position() + m);
+                match += m;
+                if (m < n)
                     return match;
-                }
-                match++;
             }
+            return match;
         }
 
+        /**
+         * Moves back over bytes consumed by a match too short to copy.
+         */
+        void unread(int n) {
+            tbuf.position(tbuf.position() - n);
+            if (history != null)
+                history.unread(n);
+        }
+        
+        /**
+         * Returns how many of the buffered target bytes repeat the target
+         * from history position <code>pos</code>, consuming them.
+         * The copied bytes may overlap those being matched.
+         */
+        int historyMatch(long pos) throws IOException {
+            fill();
+            long here = history.position();
+            int match = 0;
+            int max = Math.min(tbuf.remaining(), MAX_MATCH);
+            int p = tbuf.position();
+            while (match < max) {
+                long from = pos + match;
+                byte b = from < here ? history.get(from) : tbuf.get(p + (int) (from - here));
+                if (b != tbuf.get(p + match))
+                    break;
+                match++;
+            }
+            if (match < S)
+                return match;
+            history.add(tbuf, p, match);
+            tbuf.position(p + match);
+            hashReset = true;
+            return match;
+        }
+        
         private void readMore() throws IOException {
             if (debug)
                 debug("readMore " + tbuf);
@@ -345,6 +804,15 @@ public class Delta {
             tbuf.flip();
         }
 
+        /**
+         * Reads until the buffer is full or the target ends.
+         */
+        private void fill() throws IOException {
+            tbuf.compact();
+            while (tbuf.hasRemaining() && c.read(tbuf) > 0);
+            tbuf.flip();
+        }
+
         void hash() {
             hash = Checksum.queryChecksum(tbuf, S);
         }
@@ -393,6 +861,26 @@ public class Delta {
 
     }
     
+    /**
+     * Returns how many of the <code>len</code> bytes at the given
+     * positions are equal before the first difference.
+     * Compares eight bytes at a time; buffer positions are not changed.
+     * Both buffers must use the default big-endian byte order.
+     */
+    static int mismatch(ByteBuffer a, int aPos, ByteBuffer b, int bPos, int len) {
+        int i = 0;
+        for (; i <= len - 8; i += 8) {
+            long x = a.getLong(aPos + i) ^ b.getLong(bPos + i);
+            if (x != 0) // the first differing byte is the highest
+                return i + (Long.numberOfLeadingZeros(x) >>> 3);
+        }
+        for (; i < len; i++) {
+            if (a.get(aPos + i) != b.get(bPos + i))
+                break;
+        }
+        return i;
+    }
+    
     /**
      * Creates a patch using file names.
      */
@@ -0,0 +1,312 @@
+/*
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package com.nothome.delta;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Computes differences from a source while the target is written.
+ * This suits producers that generate the new version incrementally,
+ * for example a serializer writing to an <code>OutputStream</code>.
+ * <p>
+ * Target bytes are buffered only as far as needed to look for matches;
+ * a copy still matching at the end of the written bytes is continued
+ * by the next write. Closing the stream writes what is pending and
+ * closes the {@link DiffWriter}. The source is not closed.
+ * <p>
+ * The output is equivalent to that of {@link Delta#compute(SourceIndex,
+ * SeekableSource, java.io.InputStream, DiffWriter)}, although copies
+ * may be chosen differently.
+ */
+public class DeltaOutputStream extends OutputStream {
+    
+    private final Checksum checksum;
+    private final SeekableSource source;
+    private final DiffWriter output;
+    private final int S;
+    private int maxCandidates = Delta.DEFAULT_MAX_CANDIDATES;
+    
+    /**
+     * Bytes buffered before looking for matches.
+     */
+    private final int lookahead;
+    
+    /**
+     * Written target bytes; those from start to end are not processed.
+     */
+    private final byte buf[];
+    private final ByteBuffer tbuf;
+    private int start;
+    private int end;
+    
+    private final ByteBuffer sbuf;
+    
+    /**
+     * Data bytes not yet written to output.
+     */
+    private final ByteBuffer data;
+    
+    private long hash;
+    private boolean hashValid;
+    
+    /**
+     * Copy that may continue with the next bytes written.
+     */
+    private boolean copying;
+    private long copyOffset;
+    private int copyLength;
+    
+    private boolean closed;
+    private byte one[];
+    
+    /**
+     * Constructs a new DeltaOutputStream.
+     * 
+     * @param index checksums of the source
+     * @param source the data <code>index</code> was built from
+     * @param output receives the differences
+     */
+    public DeltaOutputStream(SourceIndex index, SeekableSource source, DiffWriter output) {
+        if (source == null)
+            throw new NullPointerException("source");
+        if (output == null)
+            throw new NullPointerException("output");
+        this.checksum = index.getChecksum();
+        this.source = source;
+        this.output = output;
+        this.S = index.getChunkSize();
+        lookahead = Math.max(1024 * 64, S * 4);
+        buf = new byte[lookahead * 2];
+        tbuf = ByteBuffer.wrap(buf);
+        sbuf = ByteBuffer.allocate(lookahead);
+        data = ByteBuffer.allocate(lookahead);
+    }
+    
+    /**
+     * Sets the maximum number of source blocks with an equal checksum
+     * that are tried for each hash hit.
+     * 
+     * @see Delta#setMaxCandidates(int)
+     */
+    public void setMaxCandidates(int max) {
+        if (max <= 0)
+            throw new IllegalArgumentException("Invalid max");
+        maxCandidates = max;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (one == null)
+            one = new byte[1];
+        one[0] = (byte) b;
+        write(one, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed)
+            throw new IOException("closed");
+        while (len > 0) {
+            if (end == buf.length) {
+                System.arraycopy(buf, start, buf, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+            int n = Math.min(len, buf.length - end);
+            System.arraycopy(b, off, buf, end, n);
+            end += n;
+            off += n;
+            len -= n;
+            process(false);
+        }
+    }
+    
+    /**
+     * Flushes the output. Buffered target bytes are kept, since they may
+     * still become part of a copy.
+     */
+    @Override
+    public void flush() throws IOException {
+        output.flush();
+    }
+    
+    /**
+     * Processes the remaining target, then closes the output.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        process(true);
+        endCopy();
+        flushData();
+        output.close();
+    }
+    
+    /**
+     * Processes written bytes, keeping a lookahead unless this is the end.
+     */
+    private void process(boolean last) throws IOException {
+        while (true) {
+            int avail = end - start;
+            if (copying) {
+                if (avail == 0)
+                    return;
+                continueCopy();
+                continue;
+            }
+            if (!last && avail < lookahead)
+                return;
+            if (avail < S) {
+                while (start < end)
+                    addData(buf[start++]);
+                return;
+            }
+            if (!hashValid) {
+                tbuf.limit(end).position(start);
+                hash = Checksum.queryChecksum(tbuf, S);
+                hashValid = true;
+            }
+            int index = checksum.findChecksumIndex(hash);
+            if (index != -1 && bestCandidate(index)) {
+                continue;
+            }
+            byte b = buf[start];
+            addData(b);
+            if (start + S < end) {
+                hash = Checksum.incrementChecksum(hash, b, buf[start + S], S);
+            } else {
+                hashValid = false;
+            }
+            start++;
+        }
+    }
+    
+    /**
+     * Starts a copy from the candidate matching most of the buffered bytes.
+     * 
+     * @return false if no candidate matches at least S bytes
+     */
+    private boolean bestCandidate(int index) throws IOException {
+        int best = -1;
+        int bestMatch = 0;
+        for (int i = 0; i < maxCandidates && index != -1 && bestMatch < end - start; i++) {
+            int match = match((long) index * S, start, Delta.MAX_MATCH);
+            if (match > bestMatch) {
+                best = index;
+                bestMatch = match;
+            }
+            index = checksum.nextChecksumIndex(index);
+        }
+        if (bestMatch < S)
+            return false;
+        long offset = (long) best * S;
+        int back = matchBackward(offset);
+        flushData();
+        copying = true;
+        copyOffset = offset - back;
+        copyLength = back + bestMatch;
+        start += bestMatch;
+        hashValid = false;
+        if (start < end)
+            endCopy();
+        return true;
+    }
+    
+    /**
+     * Extends the pending copy over the bytes written since.
+     */
+    private void continueCopy() throws IOException {
+        int max = Delta.MAX_MATCH - copyLength;
+        int match = match(copyOffset + copyLength, start, max);
+        copyLength += match;
+        start += match;
+        if (start < end || match == max)
+            endCopy();
+    }
+    
+    /**
+     * Returns how many buffered bytes from <code>pos</code> match the
+     * source at <code>offset</code>, at most <code>max</code>.
+     */
+    private int match(long offset, int pos, int max) throws IOException {
+        int match = 0;
+        source.seek(offset);
+        while (pos + match < end && match < max) {
+            sbuf.clear();
+            sbuf.limit(Math.min(sbuf.capacity(), Math.min(end - pos - match, max - match)));
+            int read = source.read(sbuf);
+            if (read <= 0)
+                break;
+            sbuf.flip();
+            tbuf.clear();
+            int m = Delta.mismatch(sbuf, 0, tbuf, pos + match, read);
+            match += m;
+            if (m < read)
+                break;
+        }
+        return match;
+    }
+    
+    /**
+     * Returns how many of the pending data bytes match the source
+     * before the offset; these are taken back from the data.
+     */
+    private int matchBackward(long offset) throws IOException {
+        int max = (int) Math.min(data.position(), Math.min(offset, sbuf.capacity()));
+        if (max == 0)
+            return 0;
+        sbuf.clear().limit(max);
+        source.seek(offset - max);
+        while (sbuf.hasRemaining() && source.read(sbuf) > 0);
+        int back = 0;
+        while (back < sbuf.position() && sbuf.get(sbuf.position() - 1 - back) == data.get(data.position() - 1 - back))
+            back++;
+        data.position(data.position() - back);
+        return back;
+    }
+    
+    private void endCopy() throws IOException {
+        if (!copying)
+            return;
+        copying = false;
+        output.addCopy(copyOffset, copyLength);
+    }
+    
+    private void addData(byte b) throws IOException {
+        if (!data.hasRemaining())
+            flushData();
+        data.put(b);
+    }
+    
+    private void flushData() throws IOException {
+        data.flip();
+        if (data.hasRemaining())
+            output.addData(data);
+        data.clear();
+    }
+    
+}
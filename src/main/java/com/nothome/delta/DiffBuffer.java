@@ -0,0 +1,219 @@
+/*
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package com.nothome.delta;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Records instructions in memory, for replaying to another writer later.
+ * Adjacent data bytes are kept as one instruction.
+ */
+class DiffBuffer implements DiffWriter {
+    
+    /**
+     * Copy offset, or -1 for data.
+     */
+    private long offsets[] = new long[16];
+    
+    /**
+     * Copy length, or data length.
+     */
+    private int lengths[] = new int[16];
+    
+    /**
+     * Start of data bytes in {@link #data}.
+     */
+    private int starts[] = new int[16];
+    
+    private int count;
+    
+    private byte data[] = new byte[256];
+    
+    private int dataSize;
+    
+    private long targetLength;
+    
+    public void addCopy(long offset, int length) throws IOException {
+        add(offset, length, 0);
+    }
+
+    public void addData(byte b) throws IOException {
+        ensureData(1);
+        data[dataSize] = b;
+        appendData(1);
+    }
+
+    public void addData(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return;
+        ensureData(len);
+        System.arraycopy(b, off, data, dataSize, len);
+        appendData(len);
+    }
+
+    public void addData(ByteBuffer bb) throws IOException {
+        int len = bb.remaining();
+        if (len == 0)
+            return;
+        ensureData(len);
+        bb.get(data, dataSize, len);
+        appendData(len);
+    }
+    
+    private void appendData(int len) {
+        if (count > 0 && offsets[count - 1] == -1) {
+            lengths[count - 1] += len;
+            targetLength += len;
+        } else {
+            add(-1, len, dataSize);
+        }
+        dataSize += len;
+    }
+    
+    private void add(long offset, int length, int start) {
+        if (count == offsets.length) {
+            int size = count * 2;
+            long o[] = new long[size];
+            int l[] = new int[size];
+            int s[] = new int[size];
+            System.arraycopy(offsets, 0, o, 0, count);
+            System.arraycopy(lengths, 0, l, 0, count);
+            System.arraycopy(starts, 0, s, 0, count);
+            offsets = o;
+            lengths = l;
+            starts = s;
+        }
+        offsets[count] = offset;
+        lengths[count] = length;
+        starts[count] = start;
+        count++;
+        targetLength += length;
+    }
+    
+    private void ensureData(int len) {
+        if (dataSize + len > data.length) {
+            long size = Math.max((long) data.length * 2, (long) dataSize + len);
+            if (size > Integer.MAX_VALUE)
+                throw new IllegalStateException("data too large");
+            byte d[] = new byte[(int) size];
+            System.arraycopy(data, 0, d, 0, dataSize);
+            data = d;
+        }
+    }
+    
+    /**
+     * Returns the number of instructions.
+     */
+    public int size() {
+        return count;
+    }
+    
+    /**
+     * Returns the number of target bytes the instructions produce.
+     */
+    public long getTargetLength() {
+        return targetLength;
+    }
+    
+    public boolean isCopy(int i) {
+        return offsets[i] != -1;
+    }
+    
+    /**
+     * Returns the copy offset of instruction <code>i</code>.
+     */
+    public long getOffset(int i) {
+        return offsets[i];
+    }
+    
+    /**
+     * Returns the copy or data length of instruction <code>i</code>.
+     */
+    public int getLength(int i) {
+        return lengths[i];
+    }
+    
+    /**
+     * Returns the start of the bytes of data instruction <code>i</code>
+     * in {@link #getData()}.
+     */
+    public int getDataStart(int i) {
+        return starts[i];
+    }
+    
+    /**
+     * Returns the number of data bytes of all instructions.
+     */
+    public int getDataSize() {
+        return dataSize;
+    }
+    
+    /**
+     * Returns the data bytes of all instructions; not a copy.
+     */
+    public byte[] getData() {
+        return data;
+    }
+    
+    /**
+     * Removes all instructions.
+     */
+    public void clear() {
+        count = 0;
+        dataSize = 0;
+        targetLength = 0;
+    }
+    
+    /**
+     * Writes all instructions to the output, without closing it.
+     */
+    public void writeTo(DiffWriter output) throws IOException {
+        for (int i = 0; i < count; i++) {
+            if (isCopy(i))
+                output.addCopy(offsets[i], lengths[i]);
+            else
+                output.addData(data, starts[i], lengths[i]);
+        }
+    }
+
+    public void flush() throws IOException {
+    }
+
+    public void close() throws IOException {
+    }
+
+    /**
+     * Returns a debug <code>String</code>.
+     */
+    @Override
+    public String toString()
+    {
+        return "DiffBuffer" +
+            " instructions=" + this.count +
+            " data=" + this.dataSize +
+            " targetLength=" + this.targetLength +
+            "";
+    }
+    
+}
@@ -26,6 +26,7 @@ package com.nothome.delta;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Interface for DIFF writers.
@@ -43,6 +44,19 @@ public interface DiffWriter extends Closeable {
      */
 	public void addData(byte b) throws IOException;
 	
+	/**
+	 * Add GDIFF data instructions for <code>len</code> bytes of the array.
+	 * Implementors should buffer the data.
+	 */
+	public void addData(byte[] b, int off, int len) throws IOException;
+	
+	/**
+	 * Add GDIFF data instructions for the remaining bytes of the buffer,
+	 * advancing its position to its limit.
+	 * Implementors should buffer the data.
+	 */
+	public void addData(ByteBuffer bb) throws IOException;
+	
 	/**
 	 * Flushes to output, e.g. any data added.
 	 */
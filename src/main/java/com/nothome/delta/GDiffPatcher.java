@@ -36,6 +36,7 @@ import static com.nothome.delta.GDiffWriter.DATA_INT;
 import static com.nothome.delta.GDiffWriter.DATA_MAX;
 import static com.nothome.delta.GDiffWriter.DATA_USHORT;
 import static com.nothome.delta.GDiffWriter.EOF;
+import static com.nothome.delta.GDiffWriter.TARGET_COPY_VERSION;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -50,17 +51,40 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * This class patches an input file with a GDIFF patch fil�e.
  *
  * The patch file follows the GDIFF file specification available at
  * {@link http://www.w3.org/TR/NOTE-gdiff-19970901.html}.
+ * Patches with copies from the target, written by
+ * {@link GDiffWriter#GDiffWriter(OutputStream, long, int)}, are also read.
  */
 public class GDiffPatcher {
     
     private ByteBuffer buf = ByteBuffer.allocate(1024);
     private byte buf2[] = buf.array();
+    
+    /**
+     * Buffered patch input of the channel path.
+     */
+    private ByteBuffer patchBuf;
+    
+    /**
+     * Output history for copies from the target, or null.
+     */
+    private HistoryChannel history;
+    
+    private long sourceLength;
+    
+    /**
+     * Largest target history accepted.
+     */
+    private static final int MAX_TARGET_WINDOW = 1 << 30;
 
     /**
      * Constructs a new GDiffPatcher.
@@ -74,9 +98,9 @@ public class GDiffPatcher {
     public void patch(File sourceFile, File patchFile, File outputFile)
 		throws IOException
 	{
-        RandomAccessFileSeekableSource source =new RandomAccessFileSeekableSource(new RandomAccessFile(sourceFile, "r")); 
-        InputStream patch = new FileInputStream(patchFile);
-        OutputStream output = new FileOutputStream(outputFile);
+        FileChannel source = new RandomAccessFile(sourceFile, "r").getChannel();
+        FileChannel patch = new FileInputStream(patchFile).getChannel();
+        FileChannel output = new FileOutputStream(outputFile).getChannel();
         try {
             patch(source, patch, output);
         } catch (IOException e) {
@@ -116,11 +140,18 @@ public class GDiffPatcher {
         if (patchIS.readUnsignedByte() != 0xd1 ||
                 patchIS.readUnsignedByte() != 0xff ||
                 patchIS.readUnsignedByte() != 0xd1 ||
-                patchIS.readUnsignedByte() != 0xff ||
-                patchIS.readUnsignedByte() != 0x04) {
+                patchIS.readUnsignedByte() != 0xff) {
 
             throw new PatchException("magic string not found, aborting!");
         }
+        history = null;
+        int version = patchIS.readUnsignedByte();
+        if (version == TARGET_COPY_VERSION) {
+            startHistory(patchIS.readLong(), patchIS.readInt(), Channels.newChannel(out));
+            outOS = new DataOutputStream(Channels.newOutputStream(history));
+        } else if (version != 0x04) {
+            throw new PatchException("magic string not found, aborting!");
+        }
 
         while (true) {
             int command = patchIS.readUnsignedByte();
@@ -185,9 +216,217 @@ public class GDiffPatcher {
 		outOS.flush();
     }
 
+    /**
+     * Patches using channels. Copies are transferred from the source
+     * channel to the output, which avoids copying through the heap when
+     * the output is a file or socket. Data is read from the patch in large
+     * blocks, and transferred directly if the patch is a file channel.
+     * 
+     * @param source source data, read at absolute positions
+     * @param patch patch data; read from its current position
+     * @param output must be blocking; the channels are not closed
+     */
+    public void patch(FileChannel source, ReadableByteChannel patch, WritableByteChannel output)
+    throws IOException {
+        if (patchBuf == null)
+            patchBuf = ByteBuffer.allocate(PATCH_BUFFER_SIZE);
+        patchBuf.clear().limit(0);
+        
+        need(patch, 5);
+        if (ubyte() != 0xd1 ||
+                ubyte() != 0xff ||
+                ubyte() != 0xd1 ||
+                ubyte() != 0xff) {
+
+            throw new PatchException("magic string not found, aborting!");
+        }
+        history = null;
+        int version = ubyte();
+        if (version == TARGET_COPY_VERSION) {
+            need(patch, 12);
+            startHistory(patchBuf.getLong(), patchBuf.getInt(), output);
+            output = history;
+        } else if (version != 0x04) {
+            throw new PatchException("magic string not found, aborting!");
+        }
+
+        while (true) {
+            need(patch, 1);
+            int command = ubyte();
+            if (command == EOF)
+                break;
+            
+            if (command <= DATA_MAX) {
+                append(command, patch, output);
+                continue;
+            }
+            
+            switch (command) {
+            case DATA_USHORT:
+                need(patch, 2);
+                append(ushort(), patch, output);
+                break;
+            case DATA_INT:
+                need(patch, 4);
+                append(patchBuf.getInt(), patch, output);
+                break;
+            case COPY_USHORT_UBYTE:
+                need(patch, 3);
+                copy(ushort(), ubyte(), source, output);
+                break;
+            case COPY_USHORT_USHORT:
+                need(patch, 4);
+                copy(ushort(), ushort(), source, output);
+                break;
+            case COPY_USHORT_INT:
+                need(patch, 6);
+                copy(ushort(), patchBuf.getInt(), source, output);
+                break;
+            case COPY_INT_UBYTE:
+                need(patch, 5);
+                copy(patchBuf.getInt(), ubyte(), source, output);
+                break;
+            case COPY_INT_USHORT:
+                need(patch, 6);
+                copy(patchBuf.getInt(), ushort(), source, output);
+                break;
+            case COPY_INT_INT:
+                need(patch, 8);
+                copy(patchBuf.getInt(), patchBuf.getInt(), source, output);
+                break;
+            case COPY_LONG_INT:
+                need(patch, 12);
+                copy(patchBuf.getLong(), patchBuf.getInt(), source, output);
+                break;
+            default: 
+                throw new IllegalStateException("command " + command);
+            }
+        }
+    }
+    
+    private static final int PATCH_BUFFER_SIZE = 1024 * 64;
+    
+    private void startHistory(long sourceLength, int window, WritableByteChannel output)
+    throws PatchException {
+        if (sourceLength < 0 || window <= 0 || window > MAX_TARGET_WINDOW)
+            throw new PatchException("invalid header " + sourceLength + " " + window);
+        this.sourceLength = sourceLength;
+        history = new HistoryChannel(output, window);
+    }
+
+    private int ubyte() {
+        return patchBuf.get() & 0xff;
+    }
+
+    private int ushort() {
+        return patchBuf.getShort() & 0xffff;
+    }
+
+    /**
+     * Makes sure at least <code>n</code> bytes of the patch are buffered.
+     */
+    private void need(ReadableByteChannel patch, int n) throws IOException {
+        if (patchBuf.remaining() >= n)
+            return;
+        patchBuf.compact();
+        while (patchBuf.position() < n) {
+            if (patch.read(patchBuf) == -1)
+                throw new EOFException("unexpected end of patch");
+        }
+        patchBuf.flip();
+    }
+
+    private void copy(long offset, int length, FileChannel source, WritableByteChannel output)
+    throws IOException {
+        if (offset < 0 || length < 0)
+            throw new PatchException("invalid copy " + offset + " " + length);
+        if (history != null && offset >= sourceLength) {
+            history.copy(offset - sourceLength, length);
+            return;
+        }
+        while (length > 0) {
+            long n = source.transferTo(offset, length, output);
+            if (n <= 0)
+                n = transfer(source, offset, length, output);
+            if (n <= 0)
+                throw new EOFException("in copy " + offset + " " + length);
+            offset += n;
+            length -= n;
+        }
+    }
+    
+    /**
+     * Moves bytes from a file to the output through the buffer, for when
+     * <code>transferTo</code> makes no progress.
+     * 
+     * @return bytes moved, or -1 at the end of the file
+     */
+    private int transfer(FileChannel from, long pos, long length, WritableByteChannel output)
+    throws IOException {
+        buf.clear().limit((int) Math.min(buf.capacity(), length));
+        int n = from.read(buf, pos);
+        if (n <= 0)
+            return -1;
+        buf.flip();
+        writeFully(buf, output);
+        return n;
+    }
+
+    private void append(int length, ReadableByteChannel patch, WritableByteChannel output)
+    throws IOException {
+        if (length < 0)
+            throw new PatchException("invalid data length " + length);
+        int n = Math.min(length, patchBuf.remaining());
+        if (n > 0) {
+            int limit = patchBuf.limit();
+            patchBuf.limit(patchBuf.position() + n);
+            writeFully(patchBuf, output);
+            patchBuf.limit(limit);
+            length -= n;
+        }
+        if (length == 0)
+            return;
+        // nothing is buffered now
+        if (patch instanceof FileChannel) {
+            FileChannel fc = (FileChannel) patch;
+            long pos = fc.position();
+            long end = pos + length;
+            while (pos < end) {
+                long t = fc.transferTo(pos, end - pos, output);
+                if (t <= 0)
+                    t = transfer(fc, pos, end - pos, output);
+                if (t <= 0)
+                    throw new EOFException("cannot read " + (end - pos));
+                pos += t;
+            }
+            fc.position(end);
+            return;
+        }
+        while (length > 0) {
+            patchBuf.clear().limit(Math.min(length, patchBuf.capacity()));
+            if (patch.read(patchBuf) == -1)
+                throw new EOFException("cannot read " + length);
+            patchBuf.flip();
+            length -= patchBuf.remaining();
+            writeFully(patchBuf, output);
+        }
+        patchBuf.clear().limit(0);
+    }
+
+    private static void writeFully(ByteBuffer bb, WritableByteChannel output) throws IOException {
+        while (bb.hasRemaining()) {
+            if (output.write(bb) == 0)
+                throw new IOException("output accepts no bytes, a blocking channel is needed");
+        }
+    }
+
     private void copy(long offset, int length, SeekableSource source, OutputStream output)
 		throws IOException
 	{
+        if (history != null && offset >= sourceLength) {
+            history.copy(offset - sourceLength, length);
+            return;
+        }
         source.seek(offset);
         while (length > 0) {
             int len = Math.min(buf.capacity(), length);
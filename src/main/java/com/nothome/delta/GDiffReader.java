@@ -0,0 +1,126 @@
+/*
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package com.nothome.delta;
+
+import static com.nothome.delta.GDiffWriter.COPY_INT_INT;
+import static com.nothome.delta.GDiffWriter.COPY_INT_UBYTE;
+import static com.nothome.delta.GDiffWriter.COPY_INT_USHORT;
+import static com.nothome.delta.GDiffWriter.COPY_LONG_INT;
+import static com.nothome.delta.GDiffWriter.COPY_USHORT_INT;
+import static com.nothome.delta.GDiffWriter.COPY_USHORT_UBYTE;
+import static com.nothome.delta.GDiffWriter.COPY_USHORT_USHORT;
+import static com.nothome.delta.GDiffWriter.DATA_INT;
+import static com.nothome.delta.GDiffWriter.DATA_MAX;
+import static com.nothome.delta.GDiffWriter.DATA_USHORT;
+import static com.nothome.delta.GDiffWriter.EOF;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes a GDIFF patch into {@link DiffWriter} calls.
+ */
+final class GDiffReader {
+    
+    private GDiffReader() {
+    }
+    
+    /**
+     * Reads all instructions of a version 4 patch; the output is not closed.
+     * 
+     * @throws PatchException if the patch is not GDIFF version 4
+     */
+    static void read(InputStream patch, DiffWriter output) throws IOException {
+        DataInputStream patchIS = new DataInputStream(patch);
+        if (patchIS.readUnsignedByte() != 0xd1 ||
+                patchIS.readUnsignedByte() != 0xff ||
+                patchIS.readUnsignedByte() != 0xd1 ||
+                patchIS.readUnsignedByte() != 0xff ||
+                patchIS.readUnsignedByte() != 0x04) {
+
+            throw new PatchException("magic string not found, aborting!");
+        }
+        byte buf[] = new byte[1024 * 8];
+        while (true) {
+            int command = patchIS.readUnsignedByte();
+            if (command == EOF)
+                break;
+            if (command <= DATA_MAX) {
+                data(patchIS, command, buf, output);
+                continue;
+            }
+            switch (command) {
+            case DATA_USHORT:
+                data(patchIS, patchIS.readUnsignedShort(), buf, output);
+                break;
+            case DATA_INT:
+                data(patchIS, patchIS.readInt(), buf, output);
+                break;
+            case COPY_USHORT_UBYTE:
+                copy(patchIS.readUnsignedShort(), patchIS.readUnsignedByte(), output);
+                break;
+            case COPY_USHORT_USHORT:
+                copy(patchIS.readUnsignedShort(), patchIS.readUnsignedShort(), output);
+                break;
+            case COPY_USHORT_INT:
+                copy(patchIS.readUnsignedShort(), patchIS.readInt(), output);
+                break;
+            case COPY_INT_UBYTE:
+                copy(patchIS.readInt(), patchIS.readUnsignedByte(), output);
+                break;
+            case COPY_INT_USHORT:
+                copy(patchIS.readInt(), patchIS.readUnsignedShort(), output);
+                break;
+            case COPY_INT_INT:
+                copy(patchIS.readInt(), patchIS.readInt(), output);
+                break;
+            case COPY_LONG_INT:
+                copy(patchIS.readLong(), patchIS.readInt(), output);
+                break;
+            default: 
+                throw new IllegalStateException("command " + command);
+            }
+        }
+    }
+    
+    private static void copy(long offset, int length, DiffWriter output) throws IOException {
+        if (offset < 0 || length < 0)
+            throw new PatchException("invalid copy " + offset + " " + length);
+        if (length > 0)
+            output.addCopy(offset, length);
+    }
+    
+    private static void data(DataInputStream patchIS, int length, byte buf[], DiffWriter output)
+    throws IOException {
+        if (length < 0)
+            throw new PatchException("invalid data length " + length);
+        while (length > 0) {
+            int n = Math.min(length, buf.length);
+            patchIS.readFully(buf, 0, n);
+            output.addData(buf, 0, n);
+            length -= n;
+        }
+    }
+
+}
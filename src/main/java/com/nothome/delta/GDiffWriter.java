@@ -24,10 +24,10 @@
 
 package com.nothome.delta;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Outputs a diff following the GDIFF file specification available at
@@ -56,8 +56,18 @@ public class GDiffWriter implements DiffWriter {
     public static final int COPY_INT_USHORT = 253;
     public static final int COPY_INT_INT = 254;
     public static final int COPY_LONG_INT = 255;
+    
+    /**
+     * Format version allowing copies from the target; not part of GDIFF.
+     * The header continues with the source length (long) and the target
+     * history size (int). Copy offsets from the source length on address
+     * the target already written.
+     */
+    public static final int TARGET_COPY_VERSION = 0x05;
 
-    private ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    private byte buf[] = new byte[CHUNK_SIZE];
+    
+    private int count = 0;
 
     private boolean debug = false;
     
@@ -82,6 +92,27 @@ public class GDiffWriter implements DiffWriter {
     public GDiffWriter(OutputStream output) throws IOException {
         this(new DataOutputStream(output));
     }
+    
+    /**
+     * Constructs a new GDiffWriter for patches with copies from the target,
+     * see {@link Delta#setTargetWindow(int)}. Only {@link GDiffPatcher}
+     * reads this format.
+     * 
+     * @param sourceLength length of the source
+     * @param targetWindow target history size the patcher keeps
+     */
+    public GDiffWriter(OutputStream os, long sourceLength, int targetWindow) throws IOException {
+        if (sourceLength < 0 || targetWindow <= 0)
+            throw new IllegalArgumentException();
+        this.output = new DataOutputStream(os);
+        output.writeByte(0xd1);
+        output.writeByte(0xff);
+        output.writeByte(0xd1);
+        output.writeByte(0xff);
+        output.writeByte(TARGET_COPY_VERSION);
+        output.writeLong(sourceLength);
+        output.writeInt(targetWindow);
+    }
 
     public void addCopy(long offset, int length) throws IOException {
         writeBuf();
@@ -131,25 +162,70 @@ public class GDiffWriter implements DiffWriter {
      * Adds a data byte.
      */
     public void addData(byte b) throws IOException {
-        buf.write(b);
-        if (buf.size() >= CHUNK_SIZE)
+        buf[count++] = b;
+        if (count >= CHUNK_SIZE)
             writeBuf();
     }
     
-    private void writeBuf() throws IOException {
-        if (buf.size() > 0) {
-            if (buf.size() <= DATA_MAX) {
-                output.writeByte(buf.size());
-            } else if (buf.size() <= 65535) {
-                output.writeByte(DATA_USHORT);
-                output.writeShort(buf.size());
-            } else {
-                output.writeByte(DATA_INT);
-                output.writeInt(buf.size());
+    /**
+     * Adds data bytes.
+     * Full chunks are written straight from the array.
+     */
+    public void addData(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == 0 && len >= CHUNK_SIZE) {
+                writeData(b, off, CHUNK_SIZE);
+                off += CHUNK_SIZE;
+                len -= CHUNK_SIZE;
+                continue;
             }
-            buf.writeTo(output);
-            buf.reset();
+            int n = Math.min(len, CHUNK_SIZE - count);
+            System.arraycopy(b, off, buf, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count >= CHUNK_SIZE)
+                writeBuf();
+        }
+    }
+    
+    /**
+     * Adds the remaining data bytes of the buffer.
+     */
+    public void addData(ByteBuffer bb) throws IOException {
+        if (bb.hasArray()) {
+            int len = bb.remaining();
+            addData(bb.array(), bb.arrayOffset() + bb.position(), len);
+            bb.position(bb.position() + len);
+            return;
+        }
+        while (bb.hasRemaining()) {
+            int n = Math.min(bb.remaining(), CHUNK_SIZE - count);
+            bb.get(buf, count, n);
+            count += n;
+            if (count >= CHUNK_SIZE)
+                writeBuf();
+        }
+    }
+    
+    private void writeBuf() throws IOException {
+        if (count > 0) {
+            writeData(buf, 0, count);
+            count = 0;
+        }
+    }
+    
+    private void writeData(byte[] b, int off, int len) throws IOException {
+        if (len <= DATA_MAX) {
+            output.writeByte(len);
+        } else if (len <= 65535) {
+            output.writeByte(DATA_USHORT);
+            output.writeShort(len);
+        } else {
+            output.writeByte(DATA_INT);
+            output.writeInt(len);
         }
+        output.write(b, off, len);
     }
     
     /**
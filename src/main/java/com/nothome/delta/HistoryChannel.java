@@ -0,0 +1,88 @@
+/*
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package com.nothome.delta;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Passes patched output through, keeping the most recent bytes so that
+ * copies from the target can be read back.
+ */
+class HistoryChannel implements WritableByteChannel {
+    
+    private final WritableByteChannel out;
+    private final byte ring[];
+    private long pos;
+    private byte buf[];
+    
+    /**
+     * Constructs a new HistoryChannel.
+     * 
+     * @param window number of bytes kept
+     */
+    public HistoryChannel(WritableByteChannel out, int window) {
+        this.out = out;
+        this.ring = new byte[window];
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        int len = src.remaining();
+        int p = src.position();
+        for (int i = 0; i < len; i++)
+            ring[(int) ((pos + i) % ring.length)] = src.get(p + i);
+        pos += len;
+        while (src.hasRemaining())
+            out.write(src);
+        return len;
+    }
+    
+    /**
+     * Writes <code>length</code> bytes starting at target position
+     * <code>from</code>, which may overlap the bytes written.
+     */
+    public void copy(long from, int length) throws IOException {
+        if (from < 0 || from >= pos || pos - from > ring.length)
+            throw new PatchException("invalid target copy " + from + " at " + pos);
+        if (buf == null)
+            buf = new byte[1024 * 8];
+        while (length > 0) {
+            int n = (int) Math.min(Math.min(length, buf.length), pos - from);
+            for (int i = 0; i < n; i++)
+                buf[i] = ring[(int) ((from + i) % ring.length)];
+            write(ByteBuffer.wrap(buf, 0, n));
+            from += n;
+            length -= n;
+        }
+    }
+
+    public boolean isOpen() {
+        return out.isOpen();
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+
+}
@@ -0,0 +1,360 @@
+/*
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package com.nothome.delta;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Computes patches that {@link InPlacePatcher} applies by overwriting the
+ * source file, so no second copy of the file is needed.
+ * <p>
+ * Copies are reordered so that none reads source bytes an earlier copy
+ * has already overwritten. Each copy must run before the copies writing
+ * over what it reads; where these constraints form a cycle, copies are
+ * turned into data until the order is possible, shortest first. Data
+ * instructions only write, so they come last.
+ * <p>
+ * The patch format is:
+ * <ul>
+ * <li>magic <code>JXDI</code>, version byte, source length, target length
+ * <li>{@link #COPY}: from, to, length; or {@link #DATA}: to, length, bytes
+ * <li>{@link #END}
+ * </ul>
+ * Positions and copy lengths are longs, data lengths ints.
+ */
+public class InPlaceDelta {
+    
+    static final int MAGIC = 0x4a584449; // JXDI
+    static final int VERSION = 1;
+    
+    static final int END = 0;
+    static final int COPY = 1;
+    static final int DATA = 2;
+    
+    private final Delta delta;
+    
+    /**
+     * Constructs a new InPlaceDelta with a default {@link Delta}.
+     */
+    public InPlaceDelta() {
+        this(new Delta());
+    }
+    
+    /**
+     * Constructs a new InPlaceDelta computing differences with
+     * <code>delta</code>, which must not use target copies.
+     */
+    public InPlaceDelta(Delta delta) {
+        this.delta = delta;
+    }
+    
+    /**
+     * Compares the source file with a target file, writing an in-place
+     * patch to the patch file.
+     */
+    public void compute(File sourceFile, File targetFile, File patchFile) throws IOException {
+        checkDelta();
+        DiffBuffer instructions = new DiffBuffer();
+        delta.compute(sourceFile, targetFile, instructions);
+        RandomAccessFileSeekableSource source = new RandomAccessFileSeekableSource(new RandomAccessFile(sourceFile, "r"));
+        try {
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(patchFile));
+            try {
+                write(instructions, source, source.length(), os);
+            } finally {
+                os.close();
+            }
+        } finally {
+            source.close();
+        }
+    }
+    
+    /**
+     * Compares the source bytes with target bytes, returning an
+     * in-place patch.
+     */
+    public byte[] compute(byte source[], byte target[]) throws IOException {
+        checkDelta();
+        DiffBuffer instructions = new DiffBuffer();
+        ByteBufferSeekableSource ss = new ByteBufferSeekableSource(source);
+        delta.compute(ss, source.length, new ByteBufferSeekableSource(target), target.length, instructions);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        write(instructions, ss, source.length, os);
+        return os.toByteArray();
+    }
+    
+    private void checkDelta() {
+        if (delta.getTargetWindow() > 0)
+            throw new IllegalStateException("target copies are not supported");
+    }
+    
+    /**
+     * Orders the instructions for in-place application and writes them.
+     * 
+     * @param source source, for copies turned into data
+     */
+    void write(DiffBuffer instructions, SeekableSource source, long sourceLength, OutputStream out)
+    throws IOException {
+        int count = instructions.size();
+        long to[] = new long[count];
+        long pos = 0;
+        for (int i = 0; i < count; i++) {
+            to[i] = pos;
+            pos += instructions.getLength(i);
+        }
+        
+        boolean data[] = new boolean[count];
+        int order[] = order(instructions, to, data);
+        
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.writeInt(MAGIC);
+        dos.writeByte(VERSION);
+        dos.writeLong(sourceLength);
+        dos.writeLong(pos);
+        for (int k = 0; k < order.length; k++) {
+            int i = order[k];
+            dos.writeByte(COPY);
+            dos.writeLong(instructions.getOffset(i));
+            dos.writeLong(to[i]);
+            dos.writeLong(instructions.getLength(i));
+        }
+        ByteBuffer bb = null;
+        for (int i = 0; i < count; i++) {
+            if (!data[i])
+                continue;
+            int length = instructions.getLength(i);
+            dos.writeByte(DATA);
+            dos.writeLong(to[i]);
+            dos.writeInt(length);
+            if (!instructions.isCopy(i)) {
+                dos.write(instructions.getData(), instructions.getDataStart(i), length);
+                continue;
+            }
+            // a copy given up to break a cycle
+            long offset = instructions.getOffset(i);
+            source.seek(offset);
+            while (length > 0) {
+                if (bb == null)
+                    bb = ByteBuffer.allocate(1024 * 64);
+                bb.clear().limit(Math.min(length, bb.capacity()));
+                int n = source.read(bb);
+                if (n <= 0)
+                    throw new IOException("source ended at " + offset);
+                dos.write(bb.array(), 0, n);
+                length -= n;
+            }
+        }
+        dos.writeByte(END);
+        dos.flush();
+    }
+    
+    /**
+     * Returns the copies in an order where none reads what an earlier
+     * one wrote. Data instructions, and copies turned into data, are
+     * marked in <code>data</code>.
+     * 
+     * @param to target position of each instruction
+     */
+    static int[] order(DiffBuffer instructions, long to[], boolean data[]) {
+        int count = instructions.size();
+        // edges from each copy to the copies writing over what it reads
+        int first[] = new int[count];
+        int next[] = new int[16];
+        int target[] = new int[16];
+        int edges = 0;
+        int in[] = new int[count];
+        for (int i = 0; i < count; i++)
+            first[i] = -1;
+        int copies = 0;
+        for (int i = 0; i < count; i++) {
+            if (!instructions.isCopy(i)) {
+                data[i] = true;
+                continue;
+            }
+            copies++;
+            long from = instructions.getOffset(i);
+            long end = from + instructions.getLength(i);
+            for (int j = firstWrite(to, instructions, from); j < count && to[j] < end; j++) {
+                if (j == i || !instructions.isCopy(j))
+                    continue;
+                if (edges == next.length) {
+                    int n[] = new int[edges * 2];
+                    System.arraycopy(next, 0, n, 0, edges);
+                    next = n;
+                    int t[] = new int[edges * 2];
+                    System.arraycopy(target, 0, t, 0, edges);
+                    target = t;
+                }
+                target[edges] = j;
+                next[edges] = first[i];
+                first[i] = edges++;
+                in[j]++;
+            }
+        }
+        
+        int order[] = new int[copies];
+        int n = 0;
+        int queue[] = new int[copies];
+        int head = 0;
+        int tail = 0;
+        int given = 0;
+        boolean done[] = new boolean[count];
+        for (int i = 0; i < count; i++)
+            if (!data[i] && in[i] == 0)
+                queue[tail++] = i;
+        while (true) {
+            while (head < tail) {
+                int i = queue[head++];
+                done[i] = true;
+                order[n++] = i;
+                tail = release(i, first, next, target, in, done, data, queue, tail);
+            }
+            if (n + given == copies)
+                break;
+            // cycles: give up the shortest copy on each
+            int victims[] = shortestOnCycles(instructions, first, next, target, done, data);
+            for (int victim : victims) {
+                data[victim] = true;
+                done[victim] = true;
+                given++;
+                tail = release(victim, first, next, target, in, done, data, queue, tail);
+            }
+        }
+        int result[] = new int[n];
+        System.arraycopy(order, 0, result, 0, n);
+        return result;
+    }
+    
+    /**
+     * Returns the shortest copy of each strongly connected component of
+     * more than one of the copies left, found with Tarjan's algorithm.
+     * Only these hold cycles; copies that merely wait for a cycle are
+     * released once it is broken.
+     */
+    private static int[] shortestOnCycles(DiffBuffer instructions, int first[], int next[], int target[],
+            boolean done[], boolean data[]) {
+        int count = done.length;
+        int index[] = new int[count];
+        int low[] = new int[count];
+        int edge[] = new int[count];
+        boolean onStack[] = new boolean[count];
+        int stack[] = new int[count];
+        int calls[] = new int[count];
+        int victims[] = new int[count];
+        int sp = 0;
+        int found = 0;
+        int visited = 0;
+        for (int i = 0; i < count; i++)
+            index[i] = -1;
+        for (int root = 0; root < count; root++) {
+            if (done[root] || data[root] || index[root] != -1)
+                continue;
+            int cp = 0;
+            calls[cp++] = root;
+            index[root] = low[root] = visited++;
+            edge[root] = first[root];
+            stack[sp++] = root;
+            onStack[root] = true;
+            while (cp > 0) {
+                int v = calls[cp - 1];
+                int e = edge[v];
+                if (e != -1) {
+                    edge[v] = next[e];
+                    int w = target[e];
+                    if (done[w] || data[w])
+                        continue;
+                    if (index[w] == -1) {
+                        index[w] = low[w] = visited++;
+                        edge[w] = first[w];
+                        stack[sp++] = w;
+                        onStack[w] = true;
+                        calls[cp++] = w;
+                    } else if (onStack[w]) {
+                        low[v] = Math.min(low[v], index[w]);
+                    }
+                    continue;
+                }
+                cp--;
+                if (cp > 0)
+                    low[calls[cp - 1]] = Math.min(low[calls[cp - 1]], low[v]);
+                if (low[v] != index[v])
+                    continue;
+                int size = 0;
+                int shortest = -1;
+                int w;
+                do {
+                    w = stack[--sp];
+                    onStack[w] = false;
+                    size++;
+                    if (shortest == -1 || instructions.getLength(w) < instructions.getLength(shortest))
+                        shortest = w;
+                } while (w != v);
+                if (size > 1)
+                    victims[found++] = shortest;
+            }
+        }
+        int result[] = new int[found];
+        System.arraycopy(victims, 0, result, 0, found);
+        return result;
+    }
+    
+    /**
+     * Removes the edges of a finished copy, queueing copies left without
+     * predecessors.
+     */
+    private static int release(int i, int first[], int next[], int target[], int in[],
+            boolean done[], boolean data[], int queue[], int tail) {
+        for (int e = first[i]; e != -1; e = next[e]) {
+            int j = target[e];
+            if (--in[j] == 0 && !done[j] && !data[j])
+                queue[tail++] = j;
+        }
+        return tail;
+    }
+    
+    /**
+     * Returns the first instruction whose target range ends after
+     * <code>pos</code>.
+     */
+    private static int firstWrite(long to[], DiffBuffer instructions, long pos) {
+        int lo = 0;
+        int hi = to.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (to[mid] + instructions.getLength(mid) <= pos)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+}
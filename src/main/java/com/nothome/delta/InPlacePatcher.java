@@ -0,0 +1,322 @@
+/*
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package com.nothome.delta;
+
+import static com.nothome.delta.InPlaceDelta.COPY;
+import static com.nothome.delta.InPlaceDelta.DATA;
+import static com.nothome.delta.InPlaceDelta.END;
+import static com.nothome.delta.InPlaceDelta.MAGIC;
+import static com.nothome.delta.InPlaceDelta.VERSION;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Applies patches from {@link InPlaceDelta} by overwriting the source file.
+ * <p>
+ * Copies run in patch order, each in chunks ordered like
+ * <code>memmove</code> so a copy may overlap itself; data comes last,
+ * and the file is then cut to the target length.
+ * <p>
+ * Without a journal an interrupted patch leaves the file unusable. With a
+ * journal each chunk is first written, with its position in the patch,
+ * to one of two alternating journal slots and forced to disk; the file
+ * itself is forced before the other slot is reused. Patching again with
+ * the same journal rewrites the last journalled chunk and carries on from
+ * there. A last, empty record marks the patch complete before the file is
+ * cut, so patching again after a crash before the journal is deleted only
+ * cuts the file again. The journal is deleted once patching completes.
+ */
+public class InPlacePatcher {
+    
+    static final int JOURNAL_MAGIC = 0x4a58444a; // JXDJ
+    
+    /**
+     * Journal record header: magic, sequence, patch length, instruction
+     * offset, remaining range, file position, chunk length.
+     */
+    private static final int RECORD_HEADER = 4 + 8 * 6 + 4;
+    
+    private static final int PATCH_HEADER = 4 + 1 + 8 + 8;
+    
+    private int chunkSize = 1024 * 1024;
+    
+    private ByteBuffer buf;
+    private ByteBuffer record;
+    private final ByteBuffer header = ByteBuffer.allocate(1 + 8 + 8 + 8);
+    private final CRC32 crc = new CRC32();
+    
+    /**
+     * Constructs a new InPlacePatcher.
+     */
+    public InPlacePatcher() {
+    }
+    
+    /**
+     * Sets the chunk size; a journal must be resumed with the chunk size
+     * that wrote it.
+     */
+    void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+    
+    /**
+     * Patches a file in place, without a journal.
+     */
+    public void patch(File file, File patchFile) throws IOException {
+        patch(file, patchFile, null);
+    }
+    
+    /**
+     * Patches a file in place. If the journal exists from an interrupted
+     * run of the same patch, that run is completed instead.
+     * 
+     * @param journalFile journal, or null for none
+     */
+    public void patch(File file, File patchFile, File journalFile) throws IOException {
+        FileChannel patch = new FileInputStream(patchFile).getChannel();
+        FileChannel target = null;
+        FileChannel journal = null;
+        try {
+            target = new RandomAccessFile(file, "rw").getChannel();
+            if (journalFile != null)
+                journal = new RandomAccessFile(journalFile, "rw").getChannel();
+            patch(target, patch, journal);
+        } finally {
+            patch.close();
+            if (target != null)
+                target.close();
+            if (journal != null)
+                journal.close();
+        }
+        if (journalFile != null && !journalFile.delete())
+            throw new IOException("cannot delete " + journalFile);
+    }
+    
+    /**
+     * Patches a file channel in place.
+     * 
+     * @param journal journal, or null for none
+     */
+    public void patch(FileChannel file, FileChannel patch, FileChannel journal) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(PATCH_HEADER);
+        readFully(patch, bb, 0, false);
+        bb.flip();
+        if (bb.getInt() != MAGIC)
+            throw new PatchException("magic string not found, aborting!");
+        if (bb.get() != VERSION)
+            throw new PatchException("unsupported in-place patch version");
+        long sourceLength = bb.getLong();
+        long targetLength = bb.getLong();
+        
+        if (buf == null || buf.capacity() != chunkSize)
+            buf = ByteBuffer.allocate(chunkSize);
+        long offset = PATCH_HEADER;
+        long lo = -1;
+        long hi = -1;
+        long seq = 0;
+        boolean resumed = false;
+        if (journal != null) {
+            long last = recover(journal, patch.size());
+            if (last >= 0) {
+                // finish the last journalled chunk
+                record.position(RECORD_HEADER);
+                write(file, record, record.getLong(44));
+                file.force(false);
+                offset = record.getLong(20);
+                lo = record.getLong(28);
+                hi = record.getLong(36);
+                seq = last + 1;
+                resumed = true;
+            }
+        }
+        if (!resumed && file.size() != sourceLength)
+            throw new PatchException("source is " + file.size() + " bytes, patch expects " + sourceLength);
+        
+        while (true) {
+            header.clear();
+            readFully(patch, header, offset, true);
+            header.flip();
+            int op = header.get();
+            if (op == END)
+                break;
+            if (op != COPY && op != DATA)
+                throw new PatchException("bad instruction " + op + " at " + offset);
+            long from = header.getLong();
+            long to;
+            long length;
+            long next;
+            if (op == COPY) {
+                to = header.getLong();
+                length = header.getLong();
+                next = offset + 1 + 8 * 3;
+            } else {
+                to = from;
+                length = header.getInt();
+                from = offset + 1 + 8 + 4;
+                next = from + length;
+            }
+            if (lo < 0) {
+                lo = 0;
+                hi = length;
+            }
+            boolean backward = op == COPY && to > from;
+            while (lo < hi) {
+                int n = (int) Math.min(chunkSize, hi - lo);
+                long k = backward ? hi - n : lo;
+                if (backward)
+                    hi -= n;
+                else
+                    lo += n;
+                buf.clear().limit(n);
+                readFully(op == COPY ? file : patch, buf, from + k, false);
+                buf.flip();
+                if (journal != null)
+                    journal(journal, seq++, patch.size(), offset, lo, hi, to + k);
+                write(file, buf, to + k);
+                if (journal != null)
+                    file.force(false);
+            }
+            offset = next;
+            lo = -1;
+        }
+        if (journal != null) {
+            // resumes at the end instruction
+            buf.clear().limit(0);
+            journal(journal, seq, patch.size(), offset, 0, 0, targetLength);
+        }
+        file.truncate(targetLength);
+        file.force(false);
+    }
+    
+    /**
+     * Writes a journal record for the chunk in the buffer, to the slot
+     * chosen by the sequence number, and forces it.
+     */
+    private void journal(FileChannel journal, long seq, long patchLength, long offset,
+            long lo, long hi, long pos) throws IOException {
+        ensureRecord();
+        record.clear();
+        record.putInt(JOURNAL_MAGIC);
+        record.putLong(seq);
+        record.putLong(patchLength);
+        record.putLong(offset);
+        record.putLong(lo);
+        record.putLong(hi);
+        record.putLong(pos);
+        record.putInt(buf.remaining());
+        record.put(buf.duplicate());
+        crc.reset();
+        crc.update(record.array(), 0, record.position());
+        record.putLong(crc.getValue());
+        record.flip();
+        long slot = (seq & 1) * record.capacity();
+        while (record.hasRemaining())
+            journal.write(record, slot + record.position());
+        journal.force(false);
+    }
+    
+    /**
+     * Loads the newest valid journal record, returning its sequence
+     * number, or -1 if there is none.
+     */
+    private long recover(FileChannel journal, long patchLength) throws IOException {
+        ensureRecord();
+        long best = -1;
+        int bestSlot = -1;
+        for (int slot = 0; slot < 2; slot++) {
+            long seq = readRecord(journal, slot);
+            if (seq > best) {
+                best = seq;
+                bestSlot = slot;
+            }
+        }
+        if (best < 0)
+            return -1;
+        readRecord(journal, bestSlot);
+        if (record.getLong(12) != patchLength)
+            throw new PatchException("journal belongs to another patch");
+        return best;
+    }
+    
+    /**
+     * Reads a slot into the record buffer, returning its sequence number,
+     * or -1 if it holds no complete record.
+     */
+    private long readRecord(FileChannel journal, int slot) throws IOException {
+        long base = (long) slot * record.capacity();
+        record.clear();
+        while (record.hasRemaining()) {
+            if (journal.read(record, base + record.position()) < 0)
+                break;
+        }
+        if (record.position() < RECORD_HEADER + 8 || record.getInt(0) != JOURNAL_MAGIC)
+            return -1;
+        int n = record.getInt(RECORD_HEADER - 4);
+        if (n < 0 || n > chunkSize || record.position() < RECORD_HEADER + n + 8)
+            return -1;
+        crc.reset();
+        crc.update(record.array(), 0, RECORD_HEADER + n);
+        if (record.getLong(RECORD_HEADER + n) != crc.getValue())
+            return -1;
+        record.limit(RECORD_HEADER + n);
+        return record.getLong(4);
+    }
+    
+    private void ensureRecord() {
+        if (record == null || record.capacity() != RECORD_HEADER + chunkSize + 8)
+            record = ByteBuffer.allocate(RECORD_HEADER + chunkSize + 8);
+    }
+    
+    /**
+     * Writes the remaining bytes of the buffer to the file at a position.
+     */
+    void write(FileChannel file, ByteBuffer bb, long pos) throws IOException {
+        while (bb.hasRemaining())
+            pos += file.write(bb, pos);
+    }
+    
+    /**
+     * Fills the buffer from a position.
+     * 
+     * @param partial if the channel may end after at least one byte
+     */
+    private static void readFully(FileChannel ch, ByteBuffer bb, long pos, boolean partial)
+    throws IOException {
+        while (bb.hasRemaining()) {
+            int n = ch.read(bb, pos);
+            if (n < 0) {
+                if (!partial || bb.position() == 0)
+                    throw new PatchException("unexpected end of data at " + pos);
+                return;
+            }
+            pos += n;
+        }
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in 
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package com.nothome.delta;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory-maps a file as a source.
+ * Reads copy from the mapping without system calls, which helps the many
+ * small seek and read calls made while computing and applying patches.
+ * <p>
+ * Files larger than one {@link java.nio.MappedByteBuffer} allows are
+ * mapped as several regions. The mapping is released by the garbage
+ * collector, not by {@link #close()}.
+ */
+public class MappedFileSeekableSource implements SeekableSource {
+    
+    /**
+     * Default size of a mapped region.
+     */
+    static final int REGION_SIZE = 1 << 30;
+    
+    private ByteBuffer regions[];
+    private final int regionSize;
+    private final long length;
+    private long pos;
+
+    /**
+     * Constructs a new MappedFileSeekableSource.
+     */
+    public MappedFileSeekableSource(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel fc = raf.getChannel();
+            this.regionSize = REGION_SIZE;
+            this.length = fc.size();
+            this.regions = map(fc, length, regionSize);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Constructs a new MappedFileSeekableSource for the current contents
+     * of the channel. The channel may be closed afterwards.
+     */
+    public MappedFileSeekableSource(FileChannel fc) throws IOException {
+        this(fc, REGION_SIZE);
+    }
+    
+    MappedFileSeekableSource(FileChannel fc, int regionSize) throws IOException {
+        if (fc == null)
+            throw new NullPointerException("fc");
+        this.regionSize = regionSize;
+        this.length = fc.size();
+        this.regions = map(fc, length, regionSize);
+    }
+    
+    private MappedFileSeekableSource(MappedFileSeekableSource other) {
+        this.regions = other.regions;
+        this.regionSize = other.regionSize;
+        this.length = other.length;
+    }
+    
+    private static ByteBuffer[] map(FileChannel fc, long length, int regionSize) throws IOException {
+        ByteBuffer regions[] = new ByteBuffer[(int) ((length + regionSize - 1) / regionSize)];
+        for (int i = 0; i < regions.length; i++) {
+            long start = (long) i * regionSize;
+            long size = Math.min(regionSize, length - start);
+            regions[i] = fc.map(FileChannel.MapMode.READ_ONLY, start, size);
+        }
+        return regions;
+    }
+
+    /**
+     * Returns a new source over the same mapping with its own position,
+     * for use by another thread.
+     */
+    public MappedFileSeekableSource duplicate() {
+        if (regions == null)
+            throw new IllegalStateException("closed");
+        return new MappedFileSeekableSource(this);
+    }
+
+    public void seek(long pos) throws IOException {
+        if (pos < 0 || pos > length)
+            throw new IOException("pos " + pos + " cannot seek " + length);
+        this.pos = pos;
+    }
+
+    public int read(ByteBuffer bb) throws IOException {
+        if (regions == null)
+            throw new IOException("closed");
+        if (pos >= length)
+            return -1;
+        int c = 0;
+        while (bb.hasRemaining() && pos < length) {
+            ByteBuffer region = regions[(int) (pos / regionSize)].duplicate();
+            int off = (int) (pos % regionSize);
+            region.position(off);
+            region.limit(Math.min(region.limit(), off + bb.remaining()));
+            int len = region.remaining();
+            bb.put(region);
+            pos += len;
+            c += len;
+        }
+        return c;
+    }
+
+    /**
+     * Returns the length of the mapped file.
+     */
+    public long length() {
+        return length;
+    }
+
+    public void close() throws IOException {
+        regions = null;
+    }
+
+    /**
+     * Returns a debug <code>String</code>.
+     */
+    @Override
+    public String toString()
+    {
+        return "MappedSeekable" +
+            " pos=" + this.pos +
+            " length=" + this.length +
+            "";
+    }
+    
+}
@@ -0,0 +1,357 @@
+/*
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package com.nothome.delta;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Computes a delta by splitting the target into segments that are
+ * scanned concurrently against one shared {@link SourceIndex}.
+ * <p>
+ * Segment results are written in target order. Where a copy or a data
+ * run meets a segment boundary, the copy is extended across the boundary
+ * and adjacent copies are joined, so the output is close to, and often
+ * the same as, what {@link Delta} computes sequentially.
+ * <p>
+ * Any {@link ExecutorService} can be used, including a
+ * <code>java.util.concurrent.ForkJoinPool</code>. At most
+ * {@link #setMaxPending(int)} segments are held in memory at a time.
+ * <p>
+ * Example use:
+ <pre>
+ ExecutorService executor = Executors.newFixedThreadPool(8);
+ new ParallelDelta(new Delta(), executor).compute(sourceFile, targetFile, diffWriter);
+ </pre>
+ */
+public class ParallelDelta {
+    
+    /**
+     * Default segment size of 16MB.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 24;
+    
+    private final Delta delta;
+    private final ExecutorService executor;
+    private int segmentSize = DEFAULT_SEGMENT_SIZE;
+    private int maxPending = Runtime.getRuntime().availableProcessors() * 2;
+    
+    /**
+     * Constructs a new ParallelDelta.
+     * 
+     * @param delta settings (chunk size etc.) for each segment
+     * @param executor runs the segments; not shut down by this class
+     */
+    public ParallelDelta(Delta delta, ExecutorService executor) {
+        if (delta == null)
+            throw new NullPointerException("delta");
+        if (executor == null)
+            throw new NullPointerException("executor");
+        this.delta = delta;
+        this.executor = executor;
+    }
+    
+    /**
+     * Sets the number of target bytes scanned per task.
+     */
+    public void setSegmentSize(int size) {
+        if (size <= 0)
+            throw new IllegalArgumentException("Invalid size");
+        segmentSize = size;
+    }
+    
+    /**
+     * Sets how many segments may be submitted or waiting to be written.
+     * Each holds the instructions and data bytes of its part of the target.
+     */
+    public void setMaxPending(int max) {
+        if (max <= 0)
+            throw new IllegalArgumentException("Invalid max");
+        maxPending = max;
+    }
+    
+    /**
+     * Compares the source bytes with target bytes, writing to output.
+     * 
+     * @param output will be closed
+     */
+    public void compute(final byte source[], final byte target[], DiffWriter output)
+    throws IOException {
+        Opener sources = new Opener() {
+            SeekableSource open() {
+                return new ByteBufferSeekableSource(source);
+            }
+        };
+        Opener targets = new Opener() {
+            SeekableSource open() {
+                return new ByteBufferSeekableSource(target);
+            }
+        };
+        compute(sources, targets, target.length, output);
+    }
+    
+    /**
+     * Compares the source file with a target file, writing to output.
+     * Both files are memory-mapped.
+     * 
+     * @param output will be closed
+     */
+    public void compute(File sourceFile, File targetFile, DiffWriter output)
+    throws IOException {
+        final MappedFileSeekableSource source = new MappedFileSeekableSource(sourceFile);
+        final MappedFileSeekableSource target = new MappedFileSeekableSource(targetFile);
+        try {
+            Opener sources = new Opener() {
+                SeekableSource open() {
+                    return source.duplicate();
+                }
+            };
+            Opener targets = new Opener() {
+                SeekableSource open() {
+                    return target.duplicate();
+                }
+            };
+            compute(sources, targets, target.length(), output);
+        } finally {
+            source.close();
+            target.close();
+        }
+    }
+    
+    private void compute(final Opener sources, final Opener targets, long targetLength, DiffWriter output)
+    throws IOException {
+        if (delta.getTargetWindow() > 0)
+            throw new IllegalStateException("target copies are not supported");
+        SeekableSource source = sources.open();
+        final SourceIndex index = new SourceIndex(source, delta.getChunkSize());
+        Stitcher stitcher = new Stitcher(source, output);
+        LinkedList<Future<DiffBuffer>> pending = new LinkedList<Future<DiffBuffer>>();
+        try {
+            for (long start = 0; start < targetLength; start += segmentSize) {
+                final long pos = start;
+                final long len = Math.min(segmentSize, targetLength - start);
+                if (pending.size() >= maxPending)
+                    stitcher.write(get(pending.removeFirst()));
+                pending.add(executor.submit(new Callable<DiffBuffer>() {
+                    public DiffBuffer call() throws IOException {
+                        DiffBuffer buffer = new DiffBuffer();
+                        SourceInputStream is = new SourceInputStream(targets.open(), pos, len);
+                        SeekableSource s = sources.open();
+                        try {
+                            delta.compute(index, s, is, buffer);
+                        } finally {
+                            s.close();
+                            is.close();
+                        }
+                        return buffer;
+                    }
+                }));
+            }
+            while (!pending.isEmpty())
+                stitcher.write(get(pending.removeFirst()));
+            stitcher.close();
+        } finally {
+            for (Future<DiffBuffer> f : pending)
+                f.cancel(true);
+            source.close();
+        }
+    }
+    
+    private static DiffBuffer get(Future<DiffBuffer> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw (IOException) new InterruptedIOException().initCause(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw (IOException) new IOException("segment failed").initCause(cause);
+        }
+    }
+    
+    /**
+     * Opens a new reader per task.
+     */
+    private static abstract class Opener {
+        abstract SeekableSource open() throws IOException;
+    }
+    
+    /**
+     * Writes segments in order, joining instructions at the boundaries.
+     * The last copy is held back so following copies can be joined to it,
+     * and the last data run of a segment is held back so the first copy of
+     * the next segment can be extended backwards over it.
+     */
+    static class Stitcher {
+        
+        private final SeekableSource source;
+        private final DiffWriter output;
+        private final ByteBuffer sbuf = ByteBuffer.allocate(1024 * 16);
+        
+        private long copyOffset = -1;
+        private int copyLength;
+        
+        private byte data[];
+        private int dataStart;
+        private int dataLength;
+        
+        private boolean first = true;
+        
+        Stitcher(SeekableSource source, DiffWriter output) {
+            this.source = source;
+            this.output = output;
+        }
+        
+        void write(DiffBuffer segment) throws IOException {
+            int size = segment.size();
+            for (int i = 0; i < size; i++) {
+                boolean boundary = i == 0 && !first;
+                if (segment.isCopy(i)) {
+                    copy(segment.getOffset(i), segment.getLength(i), boundary);
+                } else {
+                    data(segment.getData(), segment.getDataStart(i), segment.getLength(i),
+                            boundary, i == size - 1);
+                }
+            }
+            if (size > 0)
+                first = false;
+        }
+        
+        private void copy(long offset, int length, boolean boundary) throws IOException {
+            if (boundary && dataLength > 0) {
+                int back = matchBackward(offset);
+                dataLength -= back;
+                offset -= back;
+                length += back;
+            }
+            flushData();
+            if (copyOffset != -1 && copyOffset + copyLength == offset
+                    && (long) copyLength + length <= Delta.MAX_MATCH) {
+                copyLength += length;
+                return;
+            }
+            flushCopy();
+            copyOffset = offset;
+            copyLength = length;
+        }
+        
+        private void data(byte b[], int start, int length, boolean boundary, boolean last)
+        throws IOException {
+            if (boundary && copyOffset != -1) {
+                int forward = matchForward(b, start, length);
+                copyLength += forward;
+                start += forward;
+                length -= forward;
+            }
+            if (length == 0)
+                return;
+            flushCopy();
+            flushData();
+            if (last) {
+                data = b;
+                dataStart = start;
+                dataLength = length;
+            } else {
+                output.addData(b, start, length);
+            }
+        }
+        
+        /**
+         * Returns how many bytes from the start of the data continue the
+         * held copy.
+         */
+        private int matchForward(byte b[], int start, int length) throws IOException {
+            int max = Math.min(length, Delta.MAX_MATCH - copyLength);
+            source.seek(copyOffset + copyLength);
+            ByteBuffer target = ByteBuffer.wrap(b);
+            int match = 0;
+            while (match < max) {
+                sbuf.clear();
+                sbuf.limit(Math.min(sbuf.capacity(), max - match));
+                int read = source.read(sbuf);
+                if (read <= 0)
+                    break;
+                int m = Delta.mismatch(sbuf, 0, target, start + match, read);
+                match += m;
+                if (m < read)
+                    break;
+            }
+            return match;
+        }
+        
+        /**
+         * Returns how many bytes at the end of the held data match the
+         * source just before the offset.
+         */
+        private int matchBackward(long offset) throws IOException {
+            int max = (int) Math.min(Math.min(dataLength, offset), sbuf.capacity());
+            source.seek(offset - max);
+            sbuf.clear();
+            sbuf.limit(max);
+            while (sbuf.hasRemaining() && source.read(sbuf) > 0);
+            if (sbuf.hasRemaining())
+                return 0;
+            int back = 0;
+            int end = dataStart + dataLength;
+            while (back < max && sbuf.get(max - 1 - back) == data[end - 1 - back])
+                back++;
+            return back;
+        }
+        
+        private void flushCopy() throws IOException {
+            if (copyOffset != -1) {
+                output.addCopy(copyOffset, copyLength);
+                copyOffset = -1;
+            }
+        }
+        
+        private void flushData() throws IOException {
+            if (dataLength > 0) {
+                output.addData(data, dataStart, dataLength);
+                dataLength = 0;
+            }
+            data = null;
+        }
+        
+        void close() throws IOException {
+            flushData();
+            flushCopy();
+            output.close();
+        }
+        
+    }
+    
+}
@@ -0,0 +1,204 @@
+/*
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package com.nothome.delta;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Combines a patch from A to B and a patch from B to C into a patch from
+ * A to C, without constructing B. Copies of the second patch are
+ * translated through the instructions of the first, so the time taken
+ * depends on the size of the patches, not of the files.
+ * <p>
+ * The first patch is held in memory. Both are GDIFF version 4 patches.
+ */
+public class PatchComposer {
+    
+    /**
+     * Constructs a new PatchComposer.
+     */
+    public PatchComposer() {
+    }
+    
+    /**
+     * Composes two patch files into an output file.
+     */
+    public void compose(File first, File second, File output) throws IOException {
+        InputStream is1 = new BufferedInputStream(new FileInputStream(first));
+        try {
+            InputStream is2 = new BufferedInputStream(new FileInputStream(second));
+            try {
+                compose(is1, is2, new GDiffWriter(new BufferedOutputStream(new FileOutputStream(output))));
+            } finally {
+                is2.close();
+            }
+        } finally {
+            is1.close();
+        }
+    }
+    
+    /**
+     * Composes two patches in memory, returning the combined patch.
+     */
+    public byte[] compose(byte first[], byte second[]) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        compose(new ByteArrayInputStream(first), new ByteArrayInputStream(second), new GDiffWriter(os));
+        return os.toByteArray();
+    }
+
+    /**
+     * Composes two patches.
+     * 
+     * @param first patch from A to B
+     * @param second patch from B to C
+     * @param output receives the patch from A to C; will be closed
+     */
+    public void compose(InputStream first, InputStream second, DiffWriter output) throws IOException {
+        DiffBuffer map = new DiffBuffer();
+        GDiffReader.read(first, map);
+        Translator t = new Translator(map, output);
+        GDiffReader.read(second, t);
+        t.flush();
+        output.close();
+    }
+    
+    /**
+     * Writes instructions of the second patch in terms of the first.
+     */
+    static class Translator implements DiffWriter {
+        
+        private final DiffBuffer map;
+        private final DiffWriter output;
+        
+        /**
+         * Start of each instruction of the first patch in its target.
+         */
+        private final long starts[];
+        
+        /**
+         * Copy waiting to be joined with the next.
+         */
+        private long copyOffset = -1;
+        private int copyLength;
+        
+        Translator(DiffBuffer map, DiffWriter output) {
+            this.map = map;
+            this.output = output;
+            starts = new long[map.size()];
+            long pos = 0;
+            for (int i = 0; i < starts.length; i++) {
+                starts[i] = pos;
+                pos += map.getLength(i);
+            }
+        }
+        
+        /**
+         * Returns the instruction of the first patch producing byte
+         * <code>pos</code> of its target.
+         */
+        private int find(long pos) throws PatchException {
+            int lo = 0;
+            int hi = starts.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (starts[mid] <= pos)
+                    lo = mid + 1;
+                else
+                    hi = mid - 1;
+            }
+            if (hi < 0 || pos >= starts[hi] + map.getLength(hi))
+                throw new PatchException("copy beyond the first target " + pos);
+            return hi;
+        }
+
+        public void addCopy(long offset, int length) throws IOException {
+            int i = find(offset);
+            while (length > 0) {
+                if (i == starts.length)
+                    throw new PatchException("copy beyond the first target " + offset);
+                int within = (int) (offset - starts[i]);
+                int n = Math.min(length, map.getLength(i) - within);
+                if (map.isCopy(i))
+                    copy(map.getOffset(i) + within, n);
+                else
+                    data(map.getData(), map.getDataStart(i) + within, n);
+                offset += n;
+                length -= n;
+                i++;
+            }
+        }
+        
+        private void copy(long offset, int length) throws IOException {
+            if (copyOffset != -1 && copyOffset + copyLength == offset
+                    && length <= Delta.MAX_MATCH - copyLength) {
+                copyLength += length;
+                return;
+            }
+            flush();
+            copyOffset = offset;
+            copyLength = length;
+        }
+        
+        private void data(byte b[], int off, int len) throws IOException {
+            flush();
+            output.addData(b, off, len);
+        }
+
+        public void addData(byte b) throws IOException {
+            flush();
+            output.addData(b);
+        }
+
+        public void addData(byte[] b, int off, int len) throws IOException {
+            data(b, off, len);
+        }
+
+        public void addData(ByteBuffer bb) throws IOException {
+            flush();
+            output.addData(bb);
+        }
+
+        /**
+         * Writes the pending copy.
+         */
+        public void flush() throws IOException {
+            if (copyOffset != -1)
+                output.addCopy(copyOffset, copyLength);
+            copyOffset = -1;
+        }
+
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+}
@@ -0,0 +1,252 @@
+/*
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package com.nothome.delta;
+
+import static com.nothome.delta.GDiffWriter.COPY_INT_INT;
+import static com.nothome.delta.GDiffWriter.COPY_INT_UBYTE;
+import static com.nothome.delta.GDiffWriter.COPY_INT_USHORT;
+import static com.nothome.delta.GDiffWriter.COPY_LONG_INT;
+import static com.nothome.delta.GDiffWriter.COPY_USHORT_INT;
+import static com.nothome.delta.GDiffWriter.COPY_USHORT_UBYTE;
+import static com.nothome.delta.GDiffWriter.COPY_USHORT_USHORT;
+import static com.nothome.delta.GDiffWriter.DATA_INT;
+import static com.nothome.delta.GDiffWriter.DATA_MAX;
+import static com.nothome.delta.GDiffWriter.DATA_USHORT;
+import static com.nothome.delta.GDiffWriter.EOF;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads the result of applying a GDIFF patch to a source.
+ * Instructions are decoded as the caller reads, so the patched data
+ * is never held in memory or written to disk.
+ * <p>
+ * The stream is also a {@link ReadableByteChannel}.
+ * 
+ * @see GDiffPatcher
+ */
+public class PatchInputStream extends InputStream implements ReadableByteChannel {
+    
+    private final SeekableSource source;
+    private final DataInputStream patch;
+    
+    /**
+     * Source offset of the current copy.
+     */
+    private long offset;
+    
+    /**
+     * Bytes left of the current copy.
+     */
+    private int copy;
+    
+    /**
+     * Bytes left of the current data.
+     */
+    private int data;
+    
+    private boolean eof;
+    private boolean closed;
+    private byte one[];
+    private byte buf[];
+    
+    /**
+     * Constructs a new PatchInputStream, reading the patch header.
+     * 
+     * @param source source to copy from; closed with this stream
+     * @param patch patch to apply; closed with this stream
+     * @throws PatchException if the patch is not GDIFF
+     */
+    public PatchInputStream(SeekableSource source, InputStream patch) throws IOException {
+        if (source == null)
+            throw new NullPointerException("source");
+        if (patch == null)
+            throw new NullPointerException("patch");
+        this.source = source;
+        this.patch = new DataInputStream(patch);
+        if (this.patch.readUnsignedByte() != 0xd1 ||
+                this.patch.readUnsignedByte() != 0xff ||
+                this.patch.readUnsignedByte() != 0xd1 ||
+                this.patch.readUnsignedByte() != 0xff ||
+                this.patch.readUnsignedByte() != 0x04) {
+
+            throw new PatchException("magic string not found, aborting!");
+        }
+    }
+    
+    /**
+     * Decodes instructions until one with bytes to read is found.
+     * 
+     * @return false at the end of the patch
+     */
+    private boolean next() throws IOException {
+        while (copy == 0 && data == 0) {
+            if (eof)
+                return false;
+            int command = patch.readUnsignedByte();
+            if (command == EOF) {
+                eof = true;
+                return false;
+            }
+            if (command <= DATA_MAX) {
+                data = command;
+                continue;
+            }
+            switch (command) {
+            case DATA_USHORT:
+                data = patch.readUnsignedShort();
+                break;
+            case DATA_INT:
+                data = patch.readInt();
+                break;
+            case COPY_USHORT_UBYTE:
+                offset = patch.readUnsignedShort();
+                copy = patch.readUnsignedByte();
+                break;
+            case COPY_USHORT_USHORT:
+                offset = patch.readUnsignedShort();
+                copy = patch.readUnsignedShort();
+                break;
+            case COPY_USHORT_INT:
+                offset = patch.readUnsignedShort();
+                copy = patch.readInt();
+                break;
+            case COPY_INT_UBYTE:
+                offset = patch.readInt();
+                copy = patch.readUnsignedByte();
+                break;
+            case COPY_INT_USHORT:
+                offset = patch.readInt();
+                copy = patch.readUnsignedShort();
+                break;
+            case COPY_INT_INT:
+                offset = patch.readInt();
+                copy = patch.readInt();
+                break;
+            case COPY_LONG_INT:
+                offset = patch.readLong();
+                copy = patch.readInt();
+                break;
+            default: 
+                throw new IllegalStateException("command " + command);
+            }
+            if (data < 0 || copy < 0 || offset < 0)
+                throw new PatchException("invalid command " + command);
+            if (copy > 0)
+                source.seek(offset);
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (one == null)
+            one = new byte[1];
+        return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        return read(ByteBuffer.wrap(b, off, len));
+    }
+    
+    /**
+     * Reads patched bytes into the buffer.
+     * 
+     * @return the number of bytes read, or -1 at the end of the patch
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        if (closed)
+            throw new ClosedChannelException();
+        if (!dst.hasRemaining())
+            return 0;
+        if (!next())
+            return -1;
+        if (copy > 0) {
+            int len = Math.min(copy, dst.remaining());
+            ByteBuffer bb = dst.duplicate();
+            bb.limit(bb.position() + len);
+            int n = source.read(bb);
+            if (n <= 0)
+                throw new EOFException("in copy " + offset + " " + copy);
+            dst.position(dst.position() + n);
+            offset += n;
+            copy -= n;
+            return n;
+        }
+        int len = Math.min(data, dst.remaining());
+        int n;
+        if (dst.hasArray()) {
+            n = patch.read(dst.array(), dst.arrayOffset() + dst.position(), len);
+            if (n > 0)
+                dst.position(dst.position() + n);
+        } else {
+            if (buf == null)
+                buf = new byte[1024 * 8];
+            n = patch.read(buf, 0, Math.min(len, buf.length));
+            if (n > 0)
+                dst.put(buf, 0, n);
+        }
+        if (n == -1)
+            throw new EOFException("cannot read " + data);
+        data -= n;
+        return n;
+    }
+
+    /**
+     * Returns the number of bytes that can be read without decoding
+     * another instruction.
+     */
+    @Override
+    public int available() throws IOException {
+        return copy > 0 ? copy : Math.min(data, patch.available());
+    }
+
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Closes the patch and the source.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            patch.close();
+        } finally {
+            source.close();
+        }
+    }
+
+}
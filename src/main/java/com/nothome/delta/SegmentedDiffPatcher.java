@@ -0,0 +1,298 @@
+/*
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package com.nothome.delta;
+
+import static com.nothome.delta.SegmentedDiffWriter.HEADER_SIZE;
+import static com.nothome.delta.SegmentedDiffWriter.MAGIC;
+import static com.nothome.delta.SegmentedDiffWriter.TRAILER_SIZE;
+import static com.nothome.delta.SegmentedDiffWriter.VERSION;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Applies patches written by {@link SegmentedDiffWriter}, either all
+ * segments at once on an {@link ExecutorService}, or only the segments
+ * holding a range of the target.
+ * <p>
+ * Source and patch are only read at absolute positions, so one instance
+ * may serve ranges to several threads. The channels are not closed.
+ * <p>
+ * Example use, reading 4KB of the target:
+ <pre>
+ SegmentedDiffPatcher patcher = new SegmentedDiffPatcher(sourceChannel, patchChannel);
+ patcher.patch(pos, pos + 4096, output);
+ </pre>
+ */
+public class SegmentedDiffPatcher {
+    
+    /**
+     * Target bytes per parallel task.
+     */
+    private static final int TASK_SIZE = 1 << 22;
+    
+    private final FileChannel source;
+    private final FileChannel patch;
+    private final long targetLength;
+    private final int segmentSize;
+    private final long offsets[];
+    
+    /**
+     * Constructs a new SegmentedDiffPatcher, reading the segment table.
+     * 
+     * @param source source data
+     * @param patch patch data
+     */
+    public SegmentedDiffPatcher(FileChannel source, FileChannel patch) throws IOException {
+        this.source = source;
+        this.patch = patch;
+        ByteBuffer bb = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(patch, bb, 0);
+        if (bb.getInt() != MAGIC)
+            throw new PatchException("magic string not found, aborting!");
+        if (bb.get() != VERSION)
+            throw new PatchException("unsupported segmented patch version");
+        segmentSize = bb.getInt();
+        long size = patch.size();
+        if (size < HEADER_SIZE + 8 + TRAILER_SIZE)
+            throw new PatchException("truncated segmented patch");
+        bb = ByteBuffer.allocate(TRAILER_SIZE);
+        readFully(patch, bb, size - TRAILER_SIZE);
+        targetLength = bb.getLong();
+        int count = bb.getInt();
+        long table = bb.getLong();
+        if (targetLength < 0 || segmentSize <= 0 || count < 0
+                || count != (targetLength + segmentSize - 1) / segmentSize
+                || table != size - TRAILER_SIZE - 8 * (count + 1L))
+            throw new PatchException("invalid trailer " + targetLength + " " + segmentSize + " " + count);
+        bb = ByteBuffer.allocate(8 * (count + 1));
+        readFully(patch, bb, table);
+        offsets = new long[count + 1];
+        for (int i = 0; i <= count; i++) {
+            offsets[i] = bb.getLong();
+            if (offsets[i] < HEADER_SIZE || offsets[i] > table || (i > 0 && offsets[i] < offsets[i - 1]))
+                throw new PatchException("invalid segment offset " + offsets[i]);
+        }
+    }
+    
+    /**
+     * Returns the length of the target.
+     */
+    public long getTargetLength() {
+        return targetLength;
+    }
+    
+    /**
+     * Writes bytes <code>from</code> to <code>to</code> of the target,
+     * decoding only the segments holding them.
+     */
+    public void patch(long from, long to, WritableByteChannel output) throws IOException {
+        if (from < 0 || to > targetLength || from > to)
+            throw new IndexOutOfBoundsException(from + " " + to);
+        if (from == to)
+            return;
+        GDiffPatcher patcher = new GDiffPatcher();
+        int first = (int) (from / segmentSize);
+        int last = (int) ((to - 1) / segmentSize);
+        RangeChannel range = new RangeChannel(output, from - (long) first * segmentSize, to - from);
+        for (int i = first; i <= last; i++)
+            patcher.patch(source, new SegmentChannel(patch, offsets[i], offsets[i + 1]), range);
+    }
+    
+    /**
+     * Writes the whole target to the output, decoding segments
+     * concurrently.
+     * 
+     * @param output written at absolute positions
+     * @param executor runs the segments; not shut down by this class
+     */
+    public void patch(final FileChannel output, ExecutorService executor) throws IOException {
+        int perTask = Math.max(1, TASK_SIZE / segmentSize);
+        int count = offsets.length - 1;
+        LinkedList<Future<Object>> pending = new LinkedList<Future<Object>>();
+        try {
+            for (int start = 0; start < count; start += perTask) {
+                final int first = start;
+                final int last = Math.min(count, start + perTask);
+                pending.add(executor.submit(new Callable<Object>() {
+                    public Object call() throws IOException {
+                        GDiffPatcher patcher = new GDiffPatcher();
+                        WritableByteChannel out = new PositionChannel(output, (long) first * segmentSize);
+                        for (int i = first; i < last; i++)
+                            patcher.patch(source, new SegmentChannel(patch, offsets[i], offsets[i + 1]), out);
+                        return null;
+                    }
+                }));
+            }
+            while (!pending.isEmpty())
+                get(pending.removeFirst());
+        } finally {
+            for (Future<Object> f : pending)
+                f.cancel(true);
+        }
+        output.truncate(targetLength);
+    }
+    
+    private static void get(Future<Object> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw (IOException) new InterruptedIOException().initCause(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw (IOException) new IOException("segment failed").initCause(cause);
+        }
+    }
+    
+    private static void readFully(FileChannel ch, ByteBuffer bb, long pos) throws IOException {
+        while (bb.hasRemaining()) {
+            int n = ch.read(bb, pos);
+            if (n < 0)
+                throw new EOFException("unexpected end of patch");
+            pos += n;
+        }
+        bb.flip();
+    }
+    
+    /**
+     * Reads one segment of the patch.
+     */
+    private static class SegmentChannel implements ReadableByteChannel {
+        
+        private final FileChannel patch;
+        private long pos;
+        private final long end;
+        
+        SegmentChannel(FileChannel patch, long start, long end) {
+            this.patch = patch;
+            this.pos = start;
+            this.end = end;
+        }
+
+        public int read(ByteBuffer dst) throws IOException {
+            if (pos >= end)
+                return -1;
+            int limit = dst.limit();
+            if (dst.remaining() > end - pos)
+                dst.limit(dst.position() + (int) (end - pos));
+            int n = patch.read(dst, pos);
+            dst.limit(limit);
+            if (n > 0)
+                pos += n;
+            return n;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+    
+    /**
+     * Writes to a file from a position on.
+     */
+    private static class PositionChannel implements WritableByteChannel {
+        
+        private final FileChannel file;
+        private long pos;
+        
+        PositionChannel(FileChannel file, long pos) {
+            this.file = file;
+            this.pos = pos;
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            int n = file.write(src, pos);
+            pos += n;
+            return n;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+    
+    /**
+     * Passes on a range of the bytes written, discarding the rest.
+     */
+    private static class RangeChannel implements WritableByteChannel {
+        
+        private final WritableByteChannel output;
+        private long skip;
+        private long length;
+        
+        RangeChannel(WritableByteChannel output, long skip, long length) {
+            this.output = output;
+            this.skip = skip;
+            this.length = length;
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            int n = src.remaining();
+            int s = (int) Math.min(skip, n);
+            src.position(src.position() + s);
+            skip -= s;
+            int w = (int) Math.min(length, src.remaining());
+            if (w > 0) {
+                int limit = src.limit();
+                src.limit(src.position() + w);
+                while (src.hasRemaining())
+                    output.write(src);
+                src.limit(limit);
+                length -= w;
+            }
+            src.position(src.limit());
+            return n;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+}
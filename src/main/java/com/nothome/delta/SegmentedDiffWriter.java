@@ -0,0 +1,225 @@
+/*
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package com.nothome.delta;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes a patch that can be applied in parallel, or in part, by
+ * {@link SegmentedDiffPatcher}.
+ * <p>
+ * The target is cut into segments of a fixed size, each encoded as a
+ * GDIFF patch of its own; copies crossing a boundary are split. The
+ * patch is:
+ * <ul>
+ * <li>magic <code>JXDG</code>, version byte, segment size (int)
+ * <li>the segments
+ * <li>patch offset of each segment, and of the table (longs)
+ * <li>target length (long), segment count (int), table offset (long)
+ * </ul>
+ * Segments are written as they are encoded; only their offsets are held
+ * until the table is written on close.
+ */
+public class SegmentedDiffWriter implements DiffWriter {
+    
+    /**
+     * Default segment size of 64KB.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 16;
+    
+    static final int MAGIC = 0x4a584447; // JXDG
+    static final int VERSION = 2;
+    
+    /**
+     * Length of magic, version and segment size.
+     */
+    static final int HEADER_SIZE = 4 + 1 + 4;
+    
+    /**
+     * Length of target length, segment count and table offset.
+     */
+    static final int TRAILER_SIZE = 8 + 4 + 8;
+    
+    private final CountingStream segments;
+    private final DataOutputStream output;
+    private final int segmentSize;
+    private long starts[] = new long[16];
+    private int count;
+    private GDiffWriter segment;
+    private int room;
+    private long targetLength;
+    
+    /**
+     * Constructs a new SegmentedDiffWriter with the default segment size.
+     */
+    public SegmentedDiffWriter(OutputStream output) throws IOException {
+        this(output, DEFAULT_SEGMENT_SIZE);
+    }
+    
+    /**
+     * Constructs a new SegmentedDiffWriter.
+     * 
+     * @param segmentSize target bytes per segment
+     */
+    public SegmentedDiffWriter(OutputStream output, int segmentSize) throws IOException {
+        if (segmentSize <= 0)
+            throw new IllegalArgumentException("Invalid size");
+        this.segments = new CountingStream(new BufferedOutputStream(output, 1024 * 64));
+        this.output = new DataOutputStream(segments);
+        this.segmentSize = segmentSize;
+        this.output.writeInt(MAGIC);
+        this.output.writeByte(VERSION);
+        this.output.writeInt(segmentSize);
+    }
+    
+    /**
+     * Counts the bytes written; closing it only flushes, so each segment
+     * writer may close it.
+     */
+    private static class CountingStream extends FilterOutputStream {
+        
+        long written;
+        
+        CountingStream(OutputStream out) {
+            super(out);
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            written++;
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            written += len;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+        
+        /**
+         * Closes the underlying stream.
+         */
+        void finish() throws IOException {
+            out.close();
+        }
+    }
+
+    public void addCopy(long offset, int length) throws IOException {
+        while (length > 0) {
+            ensureRoom();
+            int n = Math.min(length, room);
+            segment.addCopy(offset, n);
+            offset += n;
+            length -= n;
+            room -= n;
+            targetLength += n;
+        }
+    }
+
+    public void addData(byte b) throws IOException {
+        ensureRoom();
+        segment.addData(b);
+        room--;
+        targetLength++;
+    }
+
+    public void addData(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            ensureRoom();
+            int n = Math.min(len, room);
+            segment.addData(b, off, n);
+            off += n;
+            len -= n;
+            room -= n;
+            targetLength += n;
+        }
+    }
+
+    public void addData(ByteBuffer bb) throws IOException {
+        while (bb.hasRemaining()) {
+            ensureRoom();
+            int n = Math.min(bb.remaining(), room);
+            int limit = bb.limit();
+            bb.limit(bb.position() + n);
+            segment.addData(bb);
+            bb.limit(limit);
+            room -= n;
+            targetLength += n;
+        }
+    }
+    
+    /**
+     * Starts a new segment if the current one is full.
+     */
+    private void ensureRoom() throws IOException {
+        if (segment != null && room > 0)
+            return;
+        if (segment != null)
+            segment.close();
+        if (count == starts.length) {
+            long l[] = new long[count * 2];
+            System.arraycopy(starts, 0, l, 0, count);
+            starts = l;
+        }
+        starts[count++] = segments.written;
+        segment = new GDiffWriter(segments);
+        room = segmentSize;
+    }
+
+    /**
+     * Flushes the output; the current segment is written when full or
+     * on close.
+     */
+    public void flush() throws IOException {
+        output.flush();
+    }
+
+    /**
+     * Writes the last segment and the table, and closes the output.
+     */
+    public void close() throws IOException {
+        if (segment != null)
+            segment.close();
+        segment = null;
+        long table = segments.written;
+        for (int i = 0; i < count; i++)
+            output.writeLong(starts[i]);
+        output.writeLong(table);
+        output.writeLong(targetLength);
+        output.writeInt(count);
+        output.writeLong(table);
+        output.flush();
+        segments.finish();
+    }
+
+}
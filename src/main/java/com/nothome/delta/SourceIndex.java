@@ -0,0 +1,224 @@
+/*
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package com.nothome.delta;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Block checksums of a source, for computing any number of deltas
+ * against the same source.
+ * <p>
+ * The index is immutable and may be shared by threads. It does not keep
+ * the source itself; each delta computation passes its own
+ * {@link SeekableSource} over the same data.
+ * <p>
+ * Example use:
+ <pre>
+ SourceIndex index = new SourceIndex(new ByteBufferSeekableSource(source), Delta.DEFAULT_CHUNK_SIZE);
+ // in each thread
+ new Delta().compute(index, new ByteBufferSeekableSource(source), targetStream, diffWriter);
+ </pre>
+ * <p>
+ * An index can be saved as a signature file with {@link #write(File)} and
+ * memory-mapped again with {@link #load(File, SeekableSource, long)},
+ * which avoids rescanning a large source. The signature holds the chunk
+ * size, the source length and a fingerprint computed from samples of the
+ * source; a signature whose length or fingerprint no longer match the
+ * source is rejected.
+ *
+ * @see Delta#compute(SourceIndex, SeekableSource, InputStream, DiffWriter)
+ */
+public final class SourceIndex {
+
+    /**
+     * Signature file magic, "JXDS".
+     */
+    static final int MAGIC = 0x4a584453;
+    
+    /**
+     * Signature file format version.
+     */
+    static final int VERSION = 1;
+    
+    /**
+     * Number of source samples in a fingerprint.
+     */
+    private static final int SAMPLES = 64;
+    
+    /**
+     * Size of each source sample in a fingerprint.
+     */
+    private static final int SAMPLE_SIZE = 4096;
+    
+    /**
+     * Length of magic, version, chunk size, source length and fingerprint.
+     */
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 8;
+    
+    private final Checksum checksum;
+    private final int chunkSize;
+    private final long fingerprint;
+
+    /**
+     * Reads the source from the start and indexes every
+     * <code>chunkSize</code> block.
+     * The source is then sampled for its fingerprint.
+     */
+    public SourceIndex(SeekableSource source, int chunkSize) throws IOException {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("Invalid size");
+        source.seek(0);
+        this.checksum = new Checksum(source, chunkSize);
+        this.chunkSize = chunkSize;
+        this.fingerprint = fingerprint(source, checksum.length());
+    }
+    
+    private SourceIndex(Checksum checksum, int chunkSize, long fingerprint) {
+        this.checksum = checksum;
+        this.chunkSize = chunkSize;
+        this.fingerprint = fingerprint;
+    }
+    
+    /**
+     * Memory-maps a signature file written by {@link #write(File)}.
+     * 
+     * @param signatureFile signature of the source
+     * @param source the source the signature is expected to describe
+     * @param length length of the source
+     * @return the index, or null if the signature does not match the source
+     * or was written by an unsupported version
+     * @throws IOException if the file is not a signature file
+     */
+    public static SourceIndex load(File signatureFile, SeekableSource source, long length)
+    throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(signatureFile, "r");
+        try {
+            FileChannel fc = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining())
+                if (fc.read(header) == -1)
+                    throw new IOException("truncated signature " + signatureFile);
+            header.flip();
+            if (header.getInt() != MAGIC)
+                throw new IOException("not a signature " + signatureFile);
+            if (header.getInt() != VERSION)
+                return null;
+            int chunkSize = header.getInt();
+            long sourceLength = header.getLong();
+            long fingerprint = header.getLong();
+            if (chunkSize <= 0)
+                throw new IOException("invalid chunk size " + chunkSize);
+            if (sourceLength != length || fingerprint != fingerprint(source, length))
+                return null;
+            Checksum checksum = Checksum.map(fc, HEADER_SIZE, length);
+            if (checksum.count() != length / chunkSize)
+                throw new IOException("invalid signature " + signatureFile);
+            return new SourceIndex(checksum, chunkSize, fingerprint);
+        } finally {
+            // mapped buffers stay valid after the channel is closed
+            raf.close();
+        }
+    }
+    
+    /**
+     * Writes this index as a signature file.
+     */
+    public void write(File signatureFile) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(signatureFile), 1024 * 64));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(chunkSize);
+            out.writeLong(checksum.length());
+            out.writeLong(fingerprint);
+            checksum.write(out);
+        } finally {
+            out.close();
+        }
+    }
+    
+    /**
+     * Computes a CRC-32 over the length and evenly spaced samples of the
+     * source. This detects changes cheaply, but is not a full content
+     * comparison.
+     */
+    static long fingerprint(SeekableSource source, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < 8; i++)
+            crc.update((int) (length >>> (i * 8)));
+        ByteBuffer bb = ByteBuffer.allocate(SAMPLE_SIZE);
+        if (length <= (long) SAMPLES * SAMPLE_SIZE) {
+            // small enough to check everything
+            source.seek(0);
+            while (true) {
+                bb.clear();
+                while (bb.hasRemaining() && source.read(bb) > 0);
+                if (bb.position() == 0)
+                    break;
+                crc.update(bb.array(), 0, bb.position());
+            }
+            return crc.getValue();
+        }
+        long step = (length - SAMPLE_SIZE) / (SAMPLES - 1);
+        for (int i = 0; i < SAMPLES; i++) {
+            source.seek(i == SAMPLES - 1 ? length - SAMPLE_SIZE : step * i);
+            bb.clear();
+            while (bb.hasRemaining() && source.read(bb) > 0);
+            crc.update(bb.array(), 0, bb.position());
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Returns the block size the source was indexed with.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    Checksum getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Returns a debug <code>String</code>.
+     */
+    @Override
+    public String toString()
+    {
+        return "SourceIndex" +
+            " chunkSize=" + this.chunkSize +
+            " checksum=" + this.checksum +
+            "";
+    }
+
+}
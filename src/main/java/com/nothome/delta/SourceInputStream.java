@@ -0,0 +1,74 @@
+/*
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package com.nothome.delta;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a range of a {@link SeekableSource} as a stream.
+ */
+class SourceInputStream extends InputStream {
+    
+    private final SeekableSource source;
+    private long pos;
+    private long remaining;
+    
+    /**
+     * Constructs a new SourceInputStream over <code>length</code> bytes
+     * starting at <code>pos</code>. The source is not shared.
+     */
+    public SourceInputStream(SeekableSource source, long pos, long length) throws IOException {
+        this.source = source;
+        this.pos = pos;
+        this.remaining = length;
+        source.seek(pos);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte b[] = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (remaining <= 0)
+            return -1;
+        if (len == 0)
+            return 0;
+        int n = source.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)));
+        if (n <= 0)
+            throw new IOException("source ended at " + pos);
+        pos += n;
+        remaining -= n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+    
+}
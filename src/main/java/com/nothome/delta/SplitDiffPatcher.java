@@ -0,0 +1,172 @@
+/*
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package com.nothome.delta;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Applies a patch written by {@link SplitDiffWriter}. Blocks are read and
+ * applied one at a time.
+ */
+public class SplitDiffPatcher {
+    
+    /**
+     * Largest section accepted, to reject corrupt lengths.
+     */
+    private static final int MAX_SECTION = SplitDiffWriter.BLOCK_SIZE * 16;
+    
+    private final Inflater inflater = new Inflater();
+    private ByteBuffer buf = ByteBuffer.allocate(1024 * 8);
+    private byte packed[] = new byte[1024];
+    
+    /**
+     * Constructs a new SplitDiffPatcher.
+     */
+    public SplitDiffPatcher() {
+    }
+    
+    /**
+     * Patches to an output file.
+     */
+    public void patch(File sourceFile, File patchFile, File outputFile)
+    throws IOException {
+        RandomAccessFileSeekableSource source = new RandomAccessFileSeekableSource(new RandomAccessFile(sourceFile, "r")); 
+        InputStream patch = new FileInputStream(patchFile);
+        OutputStream output = new FileOutputStream(outputFile);
+        try {
+            patch(source, patch, output);
+        } finally {
+            source.close();
+            patch.close();
+            output.close();
+        }
+    }
+    
+    /**
+     * Patches in memory, returning the patch result.
+     */
+    public byte[] patch(byte[] source, byte[] patch) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        patch(new ByteBufferSeekableSource(source), new ByteArrayInputStream(patch), os);
+        return os.toByteArray();
+    }
+    
+    /**
+     * Patches to an output stream.
+     */
+    public void patch(SeekableSource source, InputStream patch, OutputStream out) throws IOException {
+        DataInputStream patchIS = new DataInputStream(patch);
+        if (patchIS.readInt() != SplitDiffWriter.MAGIC)
+            throw new PatchException("magic string not found, aborting!");
+        if (patchIS.readUnsignedByte() != SplitDiffWriter.VERSION)
+            throw new PatchException("unsupported version");
+        long copyEnd = 0;
+        while (true) {
+            int tag = patchIS.readUnsignedByte();
+            if (tag == SplitDiffWriter.END)
+                break;
+            if (tag != SplitDiffWriter.BLOCK)
+                throw new PatchException("invalid block tag " + tag);
+            long targetLength = VcdiffBytes.readVarint(patchIS);
+            VcdiffBytes inst = new VcdiffBytes(readSection(patchIS));
+            VcdiffBytes addr = new VcdiffBytes(readSection(patchIS));
+            byte data[] = readSection(patchIS);
+            int dataPos = 0;
+            while (inst.hasRemaining()) {
+                long v = inst.readVarint();
+                long length = v >>> 1;
+                if (length > targetLength)
+                    throw new PatchException("instruction exceeds block");
+                targetLength -= length;
+                if ((v & 1) != 0) {
+                    long d = addr.readVarint();
+                    long offset = copyEnd + (d >>> 1 ^ -(d & 1));
+                    copy(source, offset, length, out);
+                    copyEnd = offset + length;
+                } else {
+                    if (length > data.length - dataPos)
+                        throw new PatchException("data section too short");
+                    out.write(data, dataPos, (int) length);
+                    dataPos += length;
+                }
+            }
+            if (targetLength != 0 || addr.hasRemaining() || dataPos != data.length)
+                throw new PatchException("block length mismatch");
+        }
+        out.flush();
+    }
+    
+    private byte[] readSection(DataInputStream in) throws IOException {
+        long length = VcdiffBytes.readVarint(in);
+        long compressed = VcdiffBytes.readVarint(in);
+        if (length > MAX_SECTION || compressed > MAX_SECTION)
+            throw new PatchException("section too large " + length);
+        if (packed.length < compressed)
+            packed = new byte[(int) compressed];
+        in.readFully(packed, 0, (int) compressed);
+        byte b[] = new byte[(int) length];
+        inflater.reset();
+        inflater.setInput(packed, 0, (int) compressed);
+        try {
+            int n = 0;
+            while (n < b.length) {
+                int r = inflater.inflate(b, n, b.length - n);
+                if (r == 0 && (inflater.finished() || inflater.needsInput()))
+                    throw new PatchException("section too short");
+                n += r;
+            }
+        } catch (DataFormatException e) {
+            throw new PatchException("corrupt section: " + e.getMessage());
+        }
+        return b;
+    }
+
+    private void copy(SeekableSource source, long offset, long length, OutputStream out)
+    throws IOException {
+        if (offset < 0)
+            throw new PatchException("invalid copy " + offset);
+        source.seek(offset);
+        while (length > 0) {
+            buf.clear().limit((int) Math.min(buf.capacity(), length));
+            int res = source.read(buf);
+            if (res <= 0)
+                throw new EOFException("in copy " + offset + " " + length);
+            out.write(buf.array(), 0, res);
+            length -= res;
+        }
+    }
+
+}
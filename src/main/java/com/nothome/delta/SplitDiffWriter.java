@@ -0,0 +1,207 @@
+/*
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package com.nothome.delta;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Writes differences with instructions, copy addresses and data bytes in
+ * separate sections, each compressed on its own. Mixed together, as in
+ * GDIFF, they compress poorly; apart, each section is uniform.
+ * <p>
+ * The patch is written in blocks, so both sides need memory for one
+ * block only. Each block holds:
+ * <ul>
+ * <li>the tag {@link #BLOCK}; the patch ends with {@link #END} instead
+ * <li>the target length of the block
+ * <li>for each of instructions, addresses and data: the uncompressed
+ * and compressed length, followed by the zlib compressed bytes
+ * </ul>
+ * Instructions are <code>length &lt;&lt; 1 | copy</code>; addresses are
+ * the signed difference between a copy offset and the end of the previous
+ * copy, so sequential copies cost one byte. Integers use the VCDIFF
+ * variable length encoding.
+ * 
+ * @see SplitDiffPatcher
+ */
+public class SplitDiffWriter implements DiffWriter {
+    
+    static final int MAGIC = 0x4a58445a; // JXDZ
+    
+    static final int VERSION = 2;
+    
+    /**
+     * Tag before each block.
+     */
+    static final int BLOCK = 1;
+    
+    /**
+     * Tag ending the patch.
+     */
+    static final int END = 0;
+    
+    /**
+     * Data bytes or instructions per block.
+     */
+    static final int BLOCK_SIZE = 1 << 20;
+    
+    /**
+     * Compression level of instructions and addresses, which are small.
+     */
+    static final int INSTRUCTION_LEVEL = Deflater.BEST_COMPRESSION;
+    
+    private final DataOutputStream output;
+    private final DiffBuffer block = new DiffBuffer();
+    private final VcdiffBytes inst = new VcdiffBytes(1024);
+    private final VcdiffBytes addr = new VcdiffBytes(1024);
+    private final Deflater instDeflater = new Deflater(INSTRUCTION_LEVEL);
+    private final Deflater dataDeflater;
+    private byte buf[] = new byte[1024 * 8];
+    
+    /**
+     * End of the last copy, the base of the next address.
+     */
+    private long copyEnd;
+    
+    /**
+     * Constructs a new SplitDiffWriter compressing data at the default level.
+     */
+    public SplitDiffWriter(OutputStream output) throws IOException {
+        this(output, Deflater.DEFAULT_COMPRESSION);
+    }
+    
+    /**
+     * Constructs a new SplitDiffWriter.
+     * 
+     * @param dataLevel compression level of data bytes, see {@link Deflater}
+     */
+    public SplitDiffWriter(OutputStream output, int dataLevel) throws IOException {
+        this.output = new DataOutputStream(output);
+        this.dataDeflater = new Deflater(dataLevel);
+        this.output.writeInt(MAGIC);
+        this.output.writeByte(VERSION);
+    }
+
+    public void addCopy(long offset, int length) throws IOException {
+        block.addCopy(offset, length);
+        check();
+    }
+
+    public void addData(byte b) throws IOException {
+        block.addData(b);
+        check();
+    }
+
+    public void addData(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, BLOCK_SIZE - block.getDataSize());
+            block.addData(b, off, n);
+            off += n;
+            len -= n;
+            check();
+        }
+    }
+
+    public void addData(ByteBuffer bb) throws IOException {
+        while (bb.hasRemaining()) {
+            int n = Math.min(bb.remaining(), BLOCK_SIZE - block.getDataSize());
+            int limit = bb.limit();
+            bb.limit(bb.position() + n);
+            block.addData(bb);
+            bb.limit(limit);
+            check();
+        }
+    }
+    
+    private void check() throws IOException {
+        if (block.getDataSize() >= BLOCK_SIZE || block.size() >= BLOCK_SIZE / 8)
+            writeBlock();
+    }
+    
+    private void writeBlock() throws IOException {
+        int count = block.size();
+        if (count == 0)
+            return;
+        inst.clear();
+        addr.clear();
+        for (int i = 0; i < count; i++) {
+            long length = block.getLength(i);
+            if (block.isCopy(i)) {
+                inst.writeVarint(length << 1 | 1);
+                long d = block.getOffset(i) - copyEnd;
+                addr.writeVarint(d << 1 ^ d >> 63);
+                copyEnd = block.getOffset(i) + length;
+            } else {
+                inst.writeVarint(length << 1);
+            }
+        }
+        output.write(BLOCK);
+        VcdiffBytes.writeVarint(output, block.getTargetLength());
+        writeSection(instDeflater, inst.array(), inst.size());
+        writeSection(instDeflater, addr.array(), addr.size());
+        writeSection(dataDeflater, block.getData(), block.getDataSize());
+        block.clear();
+    }
+    
+    private void writeSection(Deflater deflater, byte b[], int len) throws IOException {
+        deflater.reset();
+        deflater.setInput(b, 0, len);
+        deflater.finish();
+        int size = 0;
+        while (!deflater.finished()) {
+            if (size == buf.length) {
+                byte n[] = new byte[buf.length * 2];
+                System.arraycopy(buf, 0, n, 0, size);
+                buf = n;
+            }
+            size += deflater.deflate(buf, size, buf.length - size);
+        }
+        VcdiffBytes.writeVarint(output, len);
+        VcdiffBytes.writeVarint(output, size);
+        output.write(buf, 0, size);
+    }
+
+    /**
+     * Writes the current block and flushes the stream.
+     */
+    public void flush() throws IOException {
+        writeBlock();
+        output.flush();
+    }
+
+    /**
+     * Writes the last block and the end marker, closes the stream.
+     */
+    public void close() throws IOException {
+        flush();
+        output.write(END);
+        output.close();
+        instDeflater.end();
+        dataDeflater.end();
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package com.nothome.delta;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The most recent target bytes processed by {@link Delta}, with an index
+ * of the checksums of their blocks, for copies from the target itself.
+ */
+class TargetHistory {
+    
+    private final byte ring[];
+    private final int S;
+    
+    /**
+     * Target positions of blocks by checksum bucket, or -1.
+     */
+    private final long table[];
+    private final int mask;
+    
+    private long pos;
+    
+    /**
+     * Constructs a new TargetHistory.
+     * 
+     * @param window number of bytes kept
+     * @param start target position of the first byte added
+     */
+    public TargetHistory(int window, int chunkSize, long start) {
+        ring = new byte[window];
+        S = chunkSize;
+        int size = 256;
+        while (size < window / chunkSize && size < 1 << 20)
+            size <<= 1;
+        table = new long[size];
+        for (int i = 0; i < size; i++)
+            table[i] = -1;
+        mask = size - 1;
+        pos = start;
+    }
+    
+    /**
+     * Returns the target position of the next byte added.
+     */
+    public long position() {
+        return pos;
+    }
+    
+    /**
+     * Adds bytes of the buffer at absolute position <code>off</code>.
+     */
+    public void add(ByteBuffer bb, int off, int len) {
+        while (len > 0) {
+            int r = (int) (pos % ring.length);
+            int n = Math.min(len, ring.length - r);
+            for (int i = 0; i < n; i++)
+                ring[r + i] = bb.get(off + i);
+            off += n;
+            len -= n;
+            pos += n;
+        }
+    }
+    
+    /**
+     * Takes back the last <code>n</code> bytes added.
+     */
+    public void unread(int n) {
+        pos -= n;
+    }
+    
+    /**
+     * Returns the byte at a target position still in the history.
+     */
+    public byte get(long p) {
+        return ring[(int) (p % ring.length)];
+    }
+    
+    /**
+     * Records the checksum of the block starting at the next position,
+     * if that position starts a block.
+     */
+    public void index(long hash) {
+        if (pos % S == 0)
+            table[bucket(hash)] = pos;
+    }
+    
+    /**
+     * Returns the most recent position of a block with this checksum that
+     * is still in the history, or -1.
+     */
+    public long find(long hash) {
+        long p = table[bucket(hash)];
+        if (p < 0 || p >= pos || pos - p > ring.length)
+            return -1;
+        return p;
+    }
+    
+    private int bucket(long hash) {
+        int h = (int) hash * 0x9E3779B1;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+}
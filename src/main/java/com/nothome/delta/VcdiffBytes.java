@@ -0,0 +1,147 @@
+/*
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package com.nothome.delta;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A growable byte array with VCDIFF integer encoding, used for the
+ * sections of a window.
+ */
+final class VcdiffBytes {
+    
+    private byte b[];
+    private int size;
+    private int pos;
+    
+    VcdiffBytes(int capacity) {
+        b = new byte[capacity];
+    }
+    
+    /**
+     * Wraps bytes for reading.
+     */
+    VcdiffBytes(byte b[]) {
+        this.b = b;
+        this.size = b.length;
+    }
+    
+    void clear() {
+        size = 0;
+        pos = 0;
+    }
+    
+    int size() {
+        return size;
+    }
+    
+    /**
+     * Returns the bytes; not a copy.
+     */
+    byte[] array() {
+        return b;
+    }
+    
+    void write(int v) {
+        if (size == b.length) {
+            byte n[] = new byte[b.length * 2];
+            System.arraycopy(b, 0, n, 0, size);
+            b = n;
+        }
+        b[size++] = (byte) v;
+    }
+    
+    void set(int i, int v) {
+        b[i] = (byte) v;
+    }
+    
+    void writeVarint(long v) {
+        int n = varintLength(v);
+        for (int i = n - 1; i > 0; i--)
+            write((int) (v >>> (7 * i)) & 0x7f | 0x80);
+        write((int) v & 0x7f);
+    }
+    
+    boolean hasRemaining() {
+        return pos < size;
+    }
+    
+    int position() {
+        return pos;
+    }
+    
+    int read() throws PatchException {
+        if (pos >= size)
+            throw new PatchException("section ended at " + pos);
+        return b[pos++] & 0xff;
+    }
+    
+    void read(byte dst[], int off, int len) throws PatchException {
+        if (len > size - pos)
+            throw new PatchException("section ended at " + size);
+        System.arraycopy(b, pos, dst, off, len);
+        pos += len;
+    }
+    
+    long readVarint() throws PatchException {
+        long v = 0;
+        for (int i = 0; i < 9; i++) {
+            int c = read();
+            v = (v << 7) | (c & 0x7f);
+            if ((c & 0x80) == 0)
+                return v;
+        }
+        throw new PatchException("integer too long");
+    }
+    
+    /**
+     * Returns the number of bytes of the encoded integer.
+     */
+    static int varintLength(long v) {
+        int n = 1;
+        while ((v >>>= 7) != 0)
+            n++;
+        return n;
+    }
+    
+    static void writeVarint(DataOutput out, long v) throws IOException {
+        int n = varintLength(v);
+        for (int i = n - 1; i > 0; i--)
+            out.write((int) (v >>> (7 * i)) & 0x7f | 0x80);
+        out.write((int) v & 0x7f);
+    }
+    
+    static long readVarint(DataInput in) throws IOException {
+        long v = 0;
+        for (int i = 0; i < 9; i++) {
+            int c = in.readUnsignedByte();
+            v = (v << 7) | (c & 0x7f);
+            if ((c & 0x80) == 0)
+                return v;
+        }
+        throw new PatchException("integer too long");
+    }
+
+}
@@ -0,0 +1,211 @@
+/*
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package com.nothome.delta;
+
+/**
+ * The default VCDIFF instruction code table and address cache,
+ * as defined by RFC 3284 section 5.
+ */
+final class VcdiffCodeTable {
+    
+    static final int NOOP = 0;
+    static final int ADD = 1;
+    static final int RUN = 2;
+    static final int COPY = 3;
+    
+    /**
+     * Copy address modes; modes from 2 use the address cache.
+     */
+    static final int VCD_SELF = 0;
+    static final int VCD_HERE = 1;
+    
+    static final int NEAR_SIZE = 4;
+    static final int SAME_SIZE = 3;
+    
+    /**
+     * The default code table.
+     */
+    static final VcdiffCodeTable DEFAULT = new VcdiffCodeTable();
+    
+    final byte inst1[] = new byte[256];
+    final byte size1[] = new byte[256];
+    final byte mode1[] = new byte[256];
+    final byte inst2[] = new byte[256];
+    final byte size2[] = new byte[256];
+    final byte mode2[] = new byte[256];
+    
+    /**
+     * Single instruction opcodes by instruction, mode and size.
+     */
+    private final int singles[][][] = new int[4][9][19];
+    
+    private VcdiffCodeTable() {
+        int i = 0;
+        set(i++, RUN, 0, 0, NOOP, 0, 0);
+        for (int size = 0; size <= 17; size++)
+            set(i++, ADD, size, 0, NOOP, 0, 0);
+        for (int mode = 0; mode <= 8; mode++) {
+            set(i++, COPY, 0, mode, NOOP, 0, 0);
+            for (int size = 4; size <= 18; size++)
+                set(i++, COPY, size, mode, NOOP, 0, 0);
+        }
+        for (int mode = 0; mode <= 5; mode++)
+            for (int add = 1; add <= 4; add++)
+                for (int copy = 4; copy <= 6; copy++)
+                    set(i++, ADD, add, 0, COPY, copy, mode);
+        for (int mode = 6; mode <= 8; mode++)
+            for (int add = 1; add <= 4; add++)
+                set(i++, ADD, add, 0, COPY, 4, mode);
+        for (int mode = 0; mode <= 8; mode++)
+            set(i++, COPY, 4, mode, ADD, 1, 0);
+        for (int inst = ADD; inst <= COPY; inst++)
+            for (int mode = 0; mode < 9; mode++)
+                for (int size = 0; size < 19; size++)
+                    singles[inst][mode][size] = find(inst, size, mode);
+    }
+    
+    private void set(int i, int i1, int s1, int m1, int i2, int s2, int m2) {
+        inst1[i] = (byte) i1;
+        size1[i] = (byte) s1;
+        mode1[i] = (byte) m1;
+        inst2[i] = (byte) i2;
+        size2[i] = (byte) s2;
+        mode2[i] = (byte) m2;
+    }
+    
+    /**
+     * Returns the opcode of a single instruction, preferring one
+     * with the size built in.
+     */
+    int single(int inst, int size, int mode) {
+        return singles[inst][mode][size < 19 ? size : 0];
+    }
+    
+    private int find(int inst, int size, int mode) {
+        int explicit = -1;
+        for (int i = 0; i < 256; i++) {
+            if (inst1[i] != inst || mode1[i] != mode || inst2[i] != NOOP)
+                continue;
+            if (size1[i] == size)
+                return i;
+            if (size1[i] == 0)
+                explicit = i;
+        }
+        return explicit;
+    }
+    
+    /**
+     * Returns the opcode combining a single instruction, with built-in
+     * size, and the given instruction, or -1 if there is none.
+     */
+    int combined(int opcode, int inst, int size, int mode) {
+        for (int i = 0; i < 256; i++) {
+            if (inst1[i] == inst1[opcode] && size1[i] == size1[opcode] && mode1[i] == mode1[opcode]
+                    && inst2[i] == inst && size2[i] == size && mode2[i] == mode)
+                return i;
+        }
+        return -1;
+    }
+    
+    /**
+     * Near and same address caches; reset for each window.
+     */
+    static final class AddressCache {
+        
+        private final long near[] = new long[NEAR_SIZE];
+        private final long same[] = new long[SAME_SIZE * 256];
+        private int nextSlot;
+        
+        void reset() {
+            for (int i = 0; i < near.length; i++)
+                near[i] = 0;
+            for (int i = 0; i < same.length; i++)
+                same[i] = 0;
+            nextSlot = 0;
+        }
+        
+        /**
+         * Chooses the mode that encodes the address in the fewest bytes
+         * and updates the cache.
+         * 
+         * @param here current position in the address space
+         * @param out receives the encoded address
+         * @return the mode
+         */
+        int encode(long addr, long here, VcdiffBytes out) {
+            int mode = VCD_SELF;
+            long best = addr;
+            long d = here - addr;
+            if (d < best) {
+                mode = VCD_HERE;
+                best = d;
+            }
+            for (int i = 0; i < NEAR_SIZE; i++) {
+                d = addr - near[i];
+                if (d >= 0 && d < best) {
+                    mode = 2 + i;
+                    best = d;
+                }
+            }
+            int s = (int) (addr % same.length);
+            if (same[s] == addr) {
+                mode = 2 + NEAR_SIZE + s / 256;
+                out.write(s % 256);
+            } else {
+                out.writeVarint(best);
+            }
+            update(addr);
+            return mode;
+        }
+        
+        /**
+         * Decodes an address read from the addresses section
+         * and updates the cache.
+         */
+        long decode(int mode, long here, VcdiffBytes in) throws PatchException {
+            long addr;
+            if (mode == VCD_SELF) {
+                addr = in.readVarint();
+            } else if (mode == VCD_HERE) {
+                addr = here - in.readVarint();
+            } else if (mode < 2 + NEAR_SIZE) {
+                addr = near[mode - 2] + in.readVarint();
+            } else if (mode < 2 + NEAR_SIZE + SAME_SIZE) {
+                addr = same[(mode - 2 - NEAR_SIZE) * 256 + in.read()];
+            } else {
+                throw new PatchException("invalid address mode " + mode);
+            }
+            if (addr < 0 || addr >= here)
+                throw new PatchException("invalid address " + addr);
+            update(addr);
+            return addr;
+        }
+        
+        private void update(long addr) {
+            near[nextSlot] = addr;
+            nextSlot = (nextSlot + 1) % NEAR_SIZE;
+            same[(int) (addr % same.length)] = addr;
+        }
+    }
+
+}
@@ -0,0 +1,240 @@
+/*
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package com.nothome.delta;
+
+import static com.nothome.delta.VcdiffCodeTable.ADD;
+import static com.nothome.delta.VcdiffCodeTable.COPY;
+import static com.nothome.delta.VcdiffCodeTable.NOOP;
+import static com.nothome.delta.VcdiffCodeTable.RUN;
+import static com.nothome.delta.VcdiffWriter.VCD_ADLER32;
+import static com.nothome.delta.VcdiffWriter.VCD_APPHEADER;
+import static com.nothome.delta.VcdiffWriter.VCD_CODETABLE;
+import static com.nothome.delta.VcdiffWriter.VCD_DECOMPRESS;
+import static com.nothome.delta.VcdiffWriter.VCD_SOURCE;
+import static com.nothome.delta.VcdiffWriter.VCD_TARGET;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.Adler32;
+
+/**
+ * Applies a VCDIFF (RFC 3284) patch to a source.
+ * <p>
+ * Patches using the default code table are supported, including those
+ * written by other encoders: target self-copies, runs and the xdelta3
+ * window checksum. Secondary compression, custom code tables and windows
+ * copying from earlier target data are not supported.
+ * 
+ * @see VcdiffWriter
+ */
+public class VcdiffPatcher {
+    
+    private final VcdiffCodeTable table = VcdiffCodeTable.DEFAULT;
+    private final VcdiffCodeTable.AddressCache cache = new VcdiffCodeTable.AddressCache();
+
+    /**
+     * Constructs a new VcdiffPatcher.
+     */
+    public VcdiffPatcher() {
+    }
+    
+    /**
+     * Patches to an output file.
+     */
+    public void patch(File sourceFile, File patchFile, File outputFile)
+    throws IOException {
+        RandomAccessFileSeekableSource source = new RandomAccessFileSeekableSource(new RandomAccessFile(sourceFile, "r")); 
+        InputStream patch = new FileInputStream(patchFile);
+        OutputStream output = new FileOutputStream(outputFile);
+        try {
+            patch(source, patch, output);
+        } finally {
+            source.close();
+            patch.close();
+            output.close();
+        }
+    }
+    
+    /**
+     * Patches in memory, returning the patch result.
+     */
+    public byte[] patch(byte[] source, byte[] patch) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        patch(new ByteBufferSeekableSource(source), new ByteArrayInputStream(patch), os);
+        return os.toByteArray();
+    }
+    
+    /**
+     * Patches to an output stream.
+     */
+    public void patch(SeekableSource source, InputStream patch, OutputStream out) throws IOException {
+        DataInputStream patchIS = new DataInputStream(patch);
+        if (patchIS.readUnsignedByte() != 0xd6 ||
+                patchIS.readUnsignedByte() != 0xc3 ||
+                patchIS.readUnsignedByte() != 0xc4 ||
+                patchIS.readUnsignedByte() != 0x00) {
+            throw new PatchException("magic string not found, aborting!");
+        }
+        int header = patchIS.readUnsignedByte();
+        if ((header & VCD_DECOMPRESS) != 0)
+            throw new PatchException("secondary compression not supported");
+        if ((header & VCD_CODETABLE) != 0)
+            throw new PatchException("custom code table not supported");
+        if ((header & VCD_APPHEADER) != 0)
+            skip(patchIS, VcdiffBytes.readVarint(patchIS));
+        
+        while (true) {
+            int indicator = patchIS.read();
+            if (indicator == -1)
+                break;
+            if ((indicator & VCD_TARGET) != 0)
+                throw new PatchException("target segments not supported");
+            if ((indicator & ~(VCD_SOURCE | VCD_ADLER32)) != 0)
+                throw new PatchException("invalid window indicator " + indicator);
+            long segment = 0;
+            long position = 0;
+            if ((indicator & VCD_SOURCE) != 0) {
+                segment = VcdiffBytes.readVarint(patchIS);
+                position = VcdiffBytes.readVarint(patchIS);
+            }
+            VcdiffBytes.readVarint(patchIS); // length of the delta encoding
+            long targetLength = VcdiffBytes.readVarint(patchIS);
+            if (patchIS.readUnsignedByte() != 0)
+                throw new PatchException("compressed sections not supported");
+            byte data[] = new byte[length(patchIS)];
+            byte inst[] = new byte[length(patchIS)];
+            byte addr[] = new byte[length(patchIS)];
+            long checksum = -1;
+            if ((indicator & VCD_ADLER32) != 0)
+                checksum = patchIS.readInt() & 0xffffffffL;
+            patchIS.readFully(data);
+            patchIS.readFully(inst);
+            patchIS.readFully(addr);
+            if (targetLength > Integer.MAX_VALUE)
+                throw new PatchException("window too large " + targetLength);
+            byte target[] = new byte[(int) targetLength];
+            decode(source, segment, position, new VcdiffBytes(data),
+                    new VcdiffBytes(inst), new VcdiffBytes(addr), target);
+            if (checksum != -1) {
+                Adler32 adler = new Adler32();
+                adler.update(target);
+                if (adler.getValue() != checksum)
+                    throw new PatchException("window checksum mismatch");
+            }
+            out.write(target);
+        }
+        out.flush();
+    }
+    
+    private static int length(DataInputStream in) throws IOException {
+        long l = VcdiffBytes.readVarint(in);
+        if (l > Integer.MAX_VALUE)
+            throw new PatchException("section too large " + l);
+        return (int) l;
+    }
+    
+    private static void skip(DataInputStream in, long n) throws IOException {
+        while (n > 0) {
+            int s = in.skipBytes((int) Math.min(n, Integer.MAX_VALUE));
+            if (s <= 0)
+                throw new EOFException();
+            n -= s;
+        }
+    }
+
+    /**
+     * Executes the instructions of a window.
+     */
+    private void decode(SeekableSource source, long segment, long position,
+            VcdiffBytes data, VcdiffBytes inst, VcdiffBytes addr, byte target[])
+    throws IOException {
+        cache.reset();
+        int pos = 0;
+        while (inst.hasRemaining()) {
+            int op = inst.read();
+            for (int i = 0; i < 2; i++) {
+                int type = i == 0 ? table.inst1[op] : table.inst2[op];
+                if (type == NOOP)
+                    continue;
+                long size = i == 0 ? table.size1[op] : table.size2[op];
+                if (size == 0)
+                    size = inst.readVarint();
+                if (size > target.length - pos)
+                    throw new PatchException("instruction exceeds window");
+                int len = (int) size;
+                switch (type) {
+                case ADD:
+                    data.read(target, pos, len);
+                    pos += len;
+                    break;
+                case RUN:
+                    byte b = (byte) data.read();
+                    for (int j = 0; j < len; j++)
+                        target[pos++] = b;
+                    break;
+                case COPY:
+                    int mode = i == 0 ? table.mode1[op] : table.mode2[op];
+                    long a = cache.decode(mode, segment + pos, addr);
+                    int from = 0;
+                    if (a < segment) {
+                        // may run on from the end of the source segment
+                        // into the start of the target window
+                        int n = (int) Math.min(len, segment - a);
+                        copy(source, position + a, target, pos, n);
+                        pos += n;
+                        len -= n;
+                    } else {
+                        from = (int) (a - segment);
+                    }
+                    // may overlap the bytes it produces
+                    for (int j = 0; j < len; j++)
+                        target[pos++] = target[from + j];
+                    break;
+                }
+            }
+        }
+        if (pos != target.length || data.hasRemaining() || addr.hasRemaining())
+            throw new PatchException("window length mismatch");
+    }
+
+    private static void copy(SeekableSource source, long offset, byte target[], int pos, int len)
+    throws IOException {
+        source.seek(offset);
+        ByteBuffer bb = ByteBuffer.wrap(target, pos, len);
+        while (bb.hasRemaining()) {
+            if (source.read(bb) <= 0)
+                throw new EOFException("in copy " + offset + " " + len);
+        }
+    }
+
+}
@@ -0,0 +1,236 @@
+/*
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS
+ * IN THE SOFTWARE.
+ *
+ */
+
+package com.nothome.delta;
+
+import static com.nothome.delta.VcdiffCodeTable.ADD;
+import static com.nothome.delta.VcdiffCodeTable.COPY;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes differences in the VCDIFF format of RFC 3284, which can be
+ * applied by standard decoders such as xdelta3 and open-vcdiff.
+ * <p>
+ * The target is split into windows. Each window copies from the part of
+ * the source its copies cover. Copy addresses are encoded with the near
+ * and same caches, and instructions with the default code table, pairing
+ * small adds with the copies that follow them.
+ * Secondary compression is not used.
+ * 
+ * @see VcdiffPatcher
+ */
+public class VcdiffWriter implements DiffWriter {
+    
+    /**
+     * Default number of target bytes per window.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 1 << 22;
+    
+    static final int VCD_SOURCE = 0x01;
+    static final int VCD_TARGET = 0x02;
+    static final int VCD_ADLER32 = 0x04;
+    
+    static final int VCD_DECOMPRESS = 0x01;
+    static final int VCD_CODETABLE = 0x02;
+    static final int VCD_APPHEADER = 0x04;
+    
+    private final DataOutputStream output;
+    private final int windowSize;
+    private final VcdiffCodeTable table = VcdiffCodeTable.DEFAULT;
+    private final VcdiffCodeTable.AddressCache cache = new VcdiffCodeTable.AddressCache();
+    
+    /**
+     * Instructions of the current window.
+     */
+    private final DiffBuffer window = new DiffBuffer();
+    private final VcdiffBytes inst = new VcdiffBytes(1024);
+    private final VcdiffBytes addr = new VcdiffBytes(1024);
+
+    /**
+     * Constructs a new VcdiffWriter with the default window size.
+     */
+    public VcdiffWriter(OutputStream output) throws IOException {
+        this(output, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Constructs a new VcdiffWriter.
+     * 
+     * @param windowSize maximum number of target bytes per window
+     */
+    public VcdiffWriter(OutputStream output, int windowSize) throws IOException {
+        if (windowSize <= 0)
+            throw new IllegalArgumentException("Invalid window size");
+        this.output = new DataOutputStream(output);
+        this.windowSize = windowSize;
+        // magic "VCD" with the high bits set, version 0, no header options
+        this.output.write(0xd6);
+        this.output.write(0xc3);
+        this.output.write(0xc4);
+        this.output.write(0x00);
+        this.output.write(0x00);
+    }
+    
+    private int room() {
+        return (int) (windowSize - window.getTargetLength());
+    }
+
+    public void addCopy(long offset, int length) throws IOException {
+        while (length > 0) {
+            int n = Math.min(length, room());
+            window.addCopy(offset, n);
+            offset += n;
+            length -= n;
+            if (room() == 0)
+                writeWindow();
+        }
+    }
+
+    public void addData(byte b) throws IOException {
+        window.addData(b);
+        if (room() == 0)
+            writeWindow();
+    }
+
+    public void addData(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, room());
+            window.addData(b, off, n);
+            off += n;
+            len -= n;
+            if (room() == 0)
+                writeWindow();
+        }
+    }
+
+    public void addData(ByteBuffer bb) throws IOException {
+        while (bb.hasRemaining()) {
+            int n = Math.min(bb.remaining(), room());
+            ByteBuffer slice = bb.duplicate();
+            slice.limit(slice.position() + n);
+            window.addData(slice);
+            bb.position(bb.position() + n);
+            if (room() == 0)
+                writeWindow();
+        }
+    }
+    
+    /**
+     * Encodes the buffered instructions as a window.
+     */
+    private void writeWindow() throws IOException {
+        int count = window.size();
+        if (count == 0)
+            return;
+        long start = Long.MAX_VALUE;
+        long end = 0;
+        for (int i = 0; i < count; i++) {
+            if (window.isCopy(i)) {
+                start = Math.min(start, window.getOffset(i));
+                end = Math.max(end, window.getOffset(i) + window.getLength(i));
+            }
+        }
+        boolean source = start != Long.MAX_VALUE;
+        long segment = source ? end - start : 0;
+        
+        cache.reset();
+        inst.clear();
+        addr.clear();
+        int last = -1;
+        int lastPos = -1;
+        long here = segment;
+        for (int i = 0; i < count; i++) {
+            int length = window.getLength(i);
+            int type;
+            int mode = 0;
+            if (window.isCopy(i)) {
+                type = COPY;
+                mode = cache.encode(window.getOffset(i) - start, here, addr);
+            } else {
+                type = ADD;
+            }
+            here += length;
+            if (last != -1) {
+                int op = table.combined(last, type, length, mode);
+                if (op != -1) {
+                    inst.set(lastPos, op);
+                    last = -1;
+                    continue;
+                }
+            }
+            int op = table.single(type, length, mode);
+            lastPos = inst.size();
+            inst.write(op);
+            if (table.size1[op] == 0) {
+                inst.writeVarint(length);
+                last = -1;
+            } else {
+                last = op;
+            }
+        }
+        
+        int targetLength = (int) window.getTargetLength();
+        int dataLength = window.getDataSize();
+        long deltaLength = VcdiffBytes.varintLength(targetLength) + 1
+            + VcdiffBytes.varintLength(dataLength)
+            + VcdiffBytes.varintLength(inst.size())
+            + VcdiffBytes.varintLength(addr.size())
+            + dataLength + inst.size() + addr.size();
+        
+        output.write(source ? VCD_SOURCE : 0);
+        if (source) {
+            VcdiffBytes.writeVarint(output, segment);
+            VcdiffBytes.writeVarint(output, start);
+        }
+        VcdiffBytes.writeVarint(output, deltaLength);
+        VcdiffBytes.writeVarint(output, targetLength);
+        output.write(0); // no compressed sections
+        VcdiffBytes.writeVarint(output, dataLength);
+        VcdiffBytes.writeVarint(output, inst.size());
+        VcdiffBytes.writeVarint(output, addr.size());
+        output.write(window.getData(), 0, dataLength);
+        output.write(inst.array(), 0, inst.size());
+        output.write(addr.array(), 0, addr.size());
+        window.clear();
+    }
+    
+    /**
+     * Writes the current window and flushes the stream.
+     */
+    public void flush() throws IOException {
+        writeWindow();
+        output.flush();
+    }
+
+    /**
+     * Writes the last window and closes the stream.
+     */
+    public void close() throws IOException {
+        flush();
+        output.close();
+    }
+
+}
@@ -22,7 +22,9 @@
  */
 package at.spardat.xma.xdelta.test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
@@ -31,6 +33,10 @@ import java.io.InputStream;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.Enumeration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
@@ -277,8 +283,12 @@ public class JarDeltaJarPatcherTest {
      * @author S3460
      */
     private void runJarPatcher(ZipFile orginalZip, ZipFile newZip) throws Exception {
+        runJarPatcher(new JarDelta(), orginalZip, newZip);
+    }
+
+    private void runJarPatcher(JarDelta delta, ZipFile orginalZip, ZipFile newZip) throws Exception {
 
-        new JarDelta().computeDelta(orginalZip, newZip, new ZipOutputStream(new FileOutputStream(
+        delta.computeDelta(orginalZip, newZip, new ZipOutputStream(new FileOutputStream(
                 patchFile)));
 
         new JarPatcher().applyDelta(new ZipFile(sourceFile), new ZipFile(patchFile),
@@ -331,6 +341,224 @@ public class JarDeltaJarPatcherTest {
         runJarPatcherDerivedFile();
     }
 
+    /**
+     * Tests JarDelta computing entries concurrently
+     */
+    @Test
+    public void testJarDeltaParallel() throws Exception {
+        byteMaxLength = 100000;
+        entryMaxSize = 50;
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            JarDelta delta = new JarDelta(executor);
+            delta.setMaxPending(3);
+            ZipFile orginalZip = makeSourceZipFile(sourceFile);
+            runJarPatcher(delta, orginalZip, makeTargetZipFile(orginalZip, targetFile));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Tests JarPatcher patching entries concurrently, with a small buffer
+     */
+    @Test
+    public void testJarPatcherParallel() throws Exception {
+        byteMaxLength = 100000;
+        entryMaxSize = 50;
+        ZipFile orginalZip = makeSourceZipFile(sourceFile);
+        makeTargetZipFile(orginalZip, targetFile).close();
+        new JarDelta().computeDelta(orginalZip, new ZipFile(targetFile), new FileOutputStream(patchFile));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            JarPatcher patcher = new JarPatcher(executor);
+            patcher.setMaxBuffered(300000);
+            patcher.applyDelta(new ZipFile(sourceFile), new ZipFile(patchFile),
+                    new ZipOutputStream(new FileOutputStream(resultFile)));
+            compareFiles(new ZipFile(targetFile), new ZipFile(resultFile));
+            patcher.applyDelta(new ZipFile(sourceFile), new ZipFile(patchFile), new FileOutputStream(resultFile));
+            compareFiles(new ZipFile(targetFile), new ZipFile(resultFile));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Tests JarDelta and JarPatcher spilling entries larger than a few bytes to temporary files
+     */
+    @Test
+    public void testSpill() throws Exception {
+        byteMaxLength = 20000;
+        entryMaxSize = 20;
+        ZipFile orginalZip = makeSourceZipFile(sourceFile);
+        ZipFile derivedZip = makeTargetZipFile(orginalZip, targetFile);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            new JarDelta(executor).computeDelta(orginalZip, derivedZip, new FileOutputStream(patchFile));
+            JarPatcher patcher = new JarPatcher();
+            patcher.setSpillThreshold(1000);
+            patcher.applyDelta(new ZipFile(sourceFile), new ZipFile(patchFile), new FileOutputStream(resultFile));
+            compareFiles(new ZipFile(targetFile), new ZipFile(resultFile));
+            patcher = new JarPatcher(executor);
+            patcher.setSpillThreshold(1000);
+            patcher.applyDelta(new ZipFile(sourceFile), new ZipFile(patchFile), new FileOutputStream(resultFile));
+            compareFiles(new ZipFile(targetFile), new ZipFile(resultFile));
+            // source entries over the threshold are still diffed
+            JarDelta delta = new JarDelta(executor);
+            delta.setSpillThreshold(1000);
+            delta.computeDelta(new ZipFile(sourceFile), new ZipFile(targetFile), new FileOutputStream(patchFile));
+            new JarPatcher().applyDelta(new ZipFile(sourceFile), new ZipFile(patchFile), new FileOutputStream(resultFile));
+            compareFiles(new ZipFile(targetFile), new ZipFile(resultFile));
+            orginalZip = new ZipFile(sourceFile);
+            ZipFile patch = new ZipFile(patchFile);
+            for (Enumeration<? extends ZipEntry> e = orginalZip.entries(); e.hasMoreElements();) {
+                ZipEntry entry = e.nextElement();
+                if (entry.getSize() > 1000)
+                    assertNotNull(entry.getName(), patch.getEntry(entry.getName() + ".gdiff"));
+            }
+            patch.close();
+            orginalZip.close();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Writes a zip file with entries of the given names and contents.
+     */
+    private ZipFile makeZipFile(File file, String[] names, byte[][] contents) throws Exception {
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+        for (int i = 0; i < names.length; i++) {
+            out.putNextEntry(new ZipEntry(names[i]));
+            out.write(contents[i]);
+            out.closeEntry();
+        }
+        out.close();
+        return new ZipFile(file);
+    }
+
+    /**
+     * Tests that entries with the same CRC and size are left out of the patch
+     */
+    @Test
+    public void testUnchangedEntriesSkipped() throws Exception {
+        byte[] big = new byte[5000];
+        random.nextBytes(big);
+        byte[] small = new byte[10];
+        random.nextBytes(small);
+        byte[] changed = big.clone();
+        changed[100]++;
+        String[] names = { "big", "small", "changed" };
+        for (int pass = 0; pass < 2; pass++) {
+            ZipFile orginalZip = makeZipFile(sourceFile, names, new byte[][] { big, small, big });
+            ZipFile newZip = makeZipFile(targetFile, names, new byte[][] { big, small, changed });
+            JarDelta delta = new JarDelta();
+            delta.setVerify(pass == 1);
+            runJarPatcher(delta, orginalZip, newZip);
+            ZipFile patchZip = new ZipFile(patchFile);
+            try {
+                assertNull(patchZip.getEntry("big"));
+                assertNull(patchZip.getEntry("big.gdiff"));
+                assertNull(patchZip.getEntry("small"));
+                assertNotNull(patchZip.getEntry("changed.gdiff"));
+            } finally {
+                patchZip.close();
+            }
+        }
+    }
+
+    /**
+     * Tests that new and unchanged entries keep their compressed bytes when
+     * JarDelta and JarPatcher write the zip files themselves
+     */
+    @Test
+    public void testRawPassthrough() throws Exception {
+        byte[] text = new byte[20000];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) ('a' + random.nextInt(4));
+        }
+        byte[] changed = text.clone();
+        changed[5000] = 'x';
+        byte[] stored = new byte[3000];
+        random.nextBytes(stored);
+
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(sourceFile));
+        out.setLevel(Deflater.BEST_SPEED);
+        out.putNextEntry(new ZipEntry("dir/"));
+        out.putNextEntry(new ZipEntry("dir/unchanged"));
+        out.write(text);
+        out.putNextEntry(new ZipEntry("dir/changed"));
+        out.write(text);
+        out.close();
+        out = new ZipOutputStream(new FileOutputStream(targetFile));
+        out.setLevel(Deflater.BEST_SPEED);
+        out.putNextEntry(new ZipEntry("dir/"));
+        out.putNextEntry(new ZipEntry("dir/unchanged"));
+        out.write(text);
+        out.putNextEntry(new ZipEntry("dir/changed"));
+        out.write(changed);
+        out.putNextEntry(new ZipEntry("dir/new"));
+        out.write(text, 0, 10000);
+        ZipEntry storedEntry = new ZipEntry("stored");
+        storedEntry.setMethod(ZipEntry.STORED);
+        storedEntry.setSize(stored.length);
+        CRC32 crc = new CRC32();
+        crc.update(stored);
+        storedEntry.setCrc(crc.getValue());
+        out.putNextEntry(storedEntry);
+        out.write(stored);
+        out.close();
+
+        new JarDelta().computeDelta(new ZipFile(sourceFile), new ZipFile(targetFile), new FileOutputStream(patchFile));
+        new JarPatcher().applyDelta(new ZipFile(sourceFile), new ZipFile(patchFile), new FileOutputStream(resultFile));
+        compareFiles(new ZipFile(targetFile), new ZipFile(resultFile));
+
+        ZipFile targetZip = new ZipFile(targetFile);
+        ZipFile resultZip = new ZipFile(resultFile);
+        try {
+            String[] names = { "dir/unchanged", "dir/new", "stored" };
+            for (int i = 0; i < names.length; i++) {
+                ZipEntry expected = targetZip.getEntry(names[i]);
+                ZipEntry actual = resultZip.getEntry(names[i]);
+                assertEquals(names[i], expected.getMethod(), actual.getMethod());
+                assertEquals(names[i], expected.getCompressedSize(), actual.getCompressedSize());
+                assertEquals(names[i], expected.getCrc(), actual.getCrc());
+            }
+            assertTrue(resultZip.getEntry("dir/").isDirectory());
+        } finally {
+            targetZip.close();
+            resultZip.close();
+        }
+    }
+
+    /**
+     * Tests archives with more entries than fit the end of central directory
+     * record, which need zip64 records
+     */
+    @Test
+    public void testZip64EntryCount() throws Exception {
+        int count = 0x10000 + 10;
+        String[] names = new String[count];
+        byte[][] contents = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            names[i] = "e" + i;
+            contents[i] = new byte[] { (byte) i };
+        }
+        makeZipFile(sourceFile, names, contents);
+        contents[5] = new byte[] { 'x' };
+        makeZipFile(targetFile, names, contents);
+
+        new JarDelta().computeDelta(new ZipFile(sourceFile), new ZipFile(targetFile), new FileOutputStream(patchFile));
+        new JarPatcher().applyDelta(new ZipFile(sourceFile), new ZipFile(patchFile), new FileOutputStream(resultFile));
+        compareFiles(new ZipFile(targetFile), new ZipFile(resultFile));
+        ZipFile resultZip = new ZipFile(resultFile);
+        try {
+            assertEquals(count, resultZip.size());
+        } finally {
+            resultZip.close();
+        }
+    }
+
     @Test
     public void testJarPatcherCompleteDifferntFile() throws Exception {
         runJarPatcherCompleteDifferntFile();
@@ -0,0 +1,124 @@
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link CachingSeekableSource}.
+ */
+public class CachingSeekableSourceTest {
+
+    private byte[] bytes;
+    private int reads;
+    
+    @Before
+    public void setUp() {
+        bytes = new byte[10000];
+        new Random(4).nextBytes(bytes);
+        reads = 0;
+    }
+    
+    /**
+     * Returns a source counting its reads.
+     */
+    private SeekableSource counting() {
+        return new ByteBufferSeekableSource(bytes) {
+            @Override
+            public int read(ByteBuffer dest) throws IOException {
+                reads++;
+                return super.read(dest);
+            }
+        };
+    }
+    
+    private static byte[] read(SeekableSource source, long pos, int length) throws IOException {
+        source.seek(pos);
+        ByteBuffer bb = ByteBuffer.allocate(length);
+        while (bb.hasRemaining() && source.read(bb) >= 0)
+            ;
+        byte b[] = new byte[bb.position()];
+        bb.flip();
+        bb.get(b);
+        return b;
+    }
+
+    @Test
+    public void testRandomReads() throws IOException {
+        CachingSeekableSource cache = new CachingSeekableSource(counting(), 256, 1024);
+        SeekableSource direct = new ByteBufferSeekableSource(bytes);
+        Random random = new Random(5);
+        for (int i = 0; i < 2000; i++) {
+            int pos = random.nextInt(bytes.length + 1);
+            int length = random.nextInt(700);
+            assertArrayEquals(read(direct, pos, length), read(cache, pos, length));
+        }
+        assertTrue(cache.getHits() > 0);
+        assertTrue(cache.getMisses() > 0);
+        cache.seek(bytes.length);
+        assertEquals(-1, cache.read(ByteBuffer.allocate(1)));
+        assertEquals(0, cache.read(ByteBuffer.allocate(0)));
+    }
+
+    @Test
+    public void testHits() throws IOException {
+        CachingSeekableSource cache = new CachingSeekableSource(counting(), 1000, 3000);
+        read(cache, 10, 20);
+        read(cache, 500, 400);
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        // pages 0-2 fit; a fourth evicts page 1, the least recently used
+        read(cache, 1000, 2000);
+        read(cache, 0, 1);
+        read(cache, 3000, 1);
+        read(cache, 1500, 1);
+        assertEquals(5, cache.getMisses());
+        read(cache, 0, 1);
+        assertEquals(5, cache.getMisses());
+    }
+
+    @Test
+    public void testReadAhead() throws IOException {
+        CachingSeekableSource cache = new CachingSeekableSource(counting(), 100, 10000);
+        cache.setReadAhead(9);
+        for (int pos = 0; pos < bytes.length; pos += 10)
+            assertArrayEquals(read(new ByteBufferSeekableSource(bytes), pos, 10), read(cache, pos, 10));
+        // one page read alone, then sequential reads of ten pages
+        assertEquals(11, cache.getMisses());
+        assertTrue("" + reads, reads <= 2 * 12);
+    }
+
+    @Test
+    public void testLargeReadAhead() throws IOException {
+        CachingSeekableSource cache = new CachingSeekableSource(counting(), 100, 1L << 40);
+        cache.setReadAhead(Integer.MAX_VALUE);
+        for (int pos = 0; pos < bytes.length; pos += 1000)
+            assertArrayEquals(read(new ByteBufferSeekableSource(bytes), pos, 1000), read(cache, pos, 1000));
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testDeltaPatch() throws IOException {
+        byte target[] = bytes.clone();
+        for (int i = 0; i < target.length; i += 500)
+            target[i]++;
+        CachingSeekableSource source = new CachingSeekableSource(counting(), 512, 16384);
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        new Delta().compute(source, new ByteArrayInputStream(target), new GDiffWriter(patch));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new GDiffPatcher().patch(source, new ByteArrayInputStream(patch.toByteArray()), output);
+        assertArrayEquals(target, output.toByteArray());
+        // the whole source fits, so each page is read once
+        assertEquals(20, source.getMisses());
+    }
+
+}
@@ -61,4 +61,19 @@ public class ChecksumTest {
             hash = Checksum.incrementChecksum(hash, bb.get(bb.position() - chunk), bb.get(), chunk);
         assertEquals(hash2, hash);
     }
+    
+    @Test
+    public void testCandidates() throws IOException {
+        byte[] bytes = "abcdXXXXabcdYYYYabcd".getBytes("ASCII");
+        Checksum checksum = new Checksum(new ByteBufferSeekableSource(bytes), 4);
+        long hash = Checksum.queryChecksum(ByteBuffer.wrap(bytes), 4);
+        int index = checksum.findChecksumIndex(hash);
+        assertEquals(4, index);
+        index = checksum.nextChecksumIndex(index);
+        assertEquals(2, index);
+        index = checksum.nextChecksumIndex(index);
+        assertEquals(0, index);
+        assertEquals(-1, checksum.nextChecksumIndex(index));
+        assertEquals(-1, checksum.findChecksumIndex(hash + 1));
+    }
 }
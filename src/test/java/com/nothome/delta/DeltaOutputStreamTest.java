@@ -0,0 +1,91 @@
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.nothome.delta.DeltaTest.RecordingWriter;
+
+/**
+ * Tests {@link DeltaOutputStream}.
+ */
+public class DeltaOutputStreamTest {
+
+    private static byte[] delta(byte source[], byte target[], int chunkSize, int writeSize)
+    throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ByteBufferSeekableSource ss = new ByteBufferSeekableSource(source);
+        DeltaOutputStream dos = new DeltaOutputStream(new SourceIndex(ss, chunkSize), ss, new GDiffWriter(os));
+        for (int i = 0; i < target.length; i += writeSize)
+            dos.write(target, i, Math.min(writeSize, target.length - i));
+        dos.close();
+        return os.toByteArray();
+    }
+
+    @Test
+    public void testEdits() throws IOException {
+        Random random = new Random(3);
+        byte source[] = new byte[200 * 1024];
+        random.nextBytes(source);
+        byte target[] = source.clone();
+        for (int i = 0; i < 30; i++)
+            target[random.nextInt(target.length)]++;
+        int sizes[] = { 1, 7, 1000, 100 * 1024, target.length };
+        for (int size : sizes) {
+            byte patch[] = delta(source, target, 16, size);
+            assertTrue(patch.length < 2000);
+            assertArrayEquals(target, new GDiffPatcher().patch(source, patch));
+        }
+    }
+
+    @Test
+    public void testContinuedCopy() throws IOException {
+        Random random = new Random(4);
+        byte source[] = new byte[300 * 1024];
+        random.nextBytes(source);
+        ByteBufferSeekableSource ss = new ByteBufferSeekableSource(source);
+        RecordingWriter w = new RecordingWriter();
+        DeltaOutputStream dos = new DeltaOutputStream(new SourceIndex(ss, 16), ss, w);
+        for (int i = 0; i < source.length; i += 100)
+            dos.write(source, i, Math.min(100, source.length - i));
+        dos.close();
+        assertEquals("[0," + source.length + "]", w.toString());
+    }
+
+    @Test
+    public void testShort() throws IOException {
+        byte source[] = "0123456789abcdefghij".getBytes("ASCII");
+        byte target[] = "ZZ3456789abcdefghijXY".getBytes("ASCII");
+        ByteBufferSeekableSource ss = new ByteBufferSeekableSource(source);
+        RecordingWriter w = new RecordingWriter();
+        DeltaOutputStream dos = new DeltaOutputStream(new SourceIndex(ss, 4), ss, w);
+        for (byte b : target)
+            dos.write(b);
+        dos.close();
+        assertEquals("ZZ[3,17]XY", w.toString());
+        assertArrayEquals(new byte[0], 
+                new GDiffPatcher().patch(source, delta(source, new byte[0], 4, 1)));
+    }
+
+    @Test
+    public void testRandom() throws IOException {
+        Random random = new Random(9);
+        for (int i = 0; i < 20; i++) {
+            byte source[] = new byte[random.nextInt(5000)];
+            random.nextBytes(source);
+            byte target[] = new byte[random.nextInt(5000)];
+            for (int j = 0; j < target.length; j++)
+                target[j] = source.length > 0 && random.nextInt(10) > 0
+                        ? source[(j + i) % source.length] : (byte) random.nextInt();
+            byte patch[] = delta(source, target, 4, 1 + random.nextInt(300));
+            assertArrayEquals(target, new GDiffPatcher().patch(source, patch));
+        }
+    }
+
+}
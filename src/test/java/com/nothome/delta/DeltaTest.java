@@ -0,0 +1,269 @@
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link Delta} match selection.
+ */
+public class DeltaTest {
+
+    @Test
+    public void testLongestCandidate() throws IOException {
+        byte[] source = "abcdefghYYYYabcd".getBytes("ASCII");
+        byte[] target = "abcdefgh".getBytes("ASCII");
+        Delta d = new Delta();
+        d.setChunkSize(4);
+        d.setMaxCandidates(1);
+        byte[] last = computeStream(d, source, target);
+        d.setMaxCandidates(Delta.DEFAULT_MAX_CANDIDATES);
+        byte[] longest = computeStream(d, source, target);
+        assertTrue(longest.length < last.length);
+        assertArrayEquals(target, new GDiffPatcher().patch(source, last));
+        assertArrayEquals(target, new GDiffPatcher().patch(source, longest));
+    }
+
+    @Test
+    public void testMatchBackward() throws IOException {
+        byte[] source = "0123456789abcdefghij".getBytes("ASCII");
+        byte[] target = "ZZ3456789abcdefghij".getBytes("ASCII");
+        Delta d = new Delta();
+        d.setChunkSize(4);
+        RecordingWriter w = new RecordingWriter();
+        d.compute(source, new ByteArrayInputStream(target), w);
+        assertEquals("ZZ[3,17]", w.toString());
+    }
+
+    @Test
+    public void testSharedIndex() throws Exception {
+        Random random = new Random(42);
+        final byte[] source = new byte[64 * 1024];
+        random.nextBytes(source);
+        final SourceIndex index = new SourceIndex(new ByteBufferSeekableSource(source), 32);
+        final Delta d = new Delta();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<byte[]> targets = new ArrayList<byte[]>();
+            List<Future<byte[]>> patches = new ArrayList<Future<byte[]>>();
+            for (int i = 0; i < 16; i++) {
+                final byte[] target = source.clone();
+                for (int j = 0; j < 20; j++)
+                    target[random.nextInt(target.length)] = (byte) random.nextInt();
+                targets.add(target);
+                patches.add(executor.submit(new Callable<byte[]>() {
+                    public byte[] call() throws IOException {
+                        ByteArrayOutputStream os = new ByteArrayOutputStream();
+                        d.compute(index, new ByteBufferSeekableSource(source),
+                                new ByteArrayInputStream(target), new GDiffWriter(os));
+                        return os.toByteArray();
+                    }
+                }));
+            }
+            for (int i = 0; i < targets.size(); i++) {
+                byte[] patch = patches.get(i).get();
+                assertTrue(patch.length < source.length / 10);
+                assertArrayEquals(targets.get(i), new GDiffPatcher().patch(source, patch));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testMismatch() {
+        byte[] a = new byte[40];
+        for (int i = 0; i < a.length; i++)
+            a[i] = (byte) i;
+        for (int diff = 0; diff < 30; diff++) {
+            byte[] b = a.clone();
+            b[diff + 5]++;
+            ByteBuffer bb = ByteBuffer.wrap(b);
+            assertEquals(diff, Delta.mismatch(ByteBuffer.wrap(a), 5, bb, 5, 30));
+            assertEquals(0, bb.position());
+        }
+        assertEquals(30, Delta.mismatch(ByteBuffer.wrap(a), 5, ByteBuffer.wrap(a.clone()), 5, 30));
+        assertEquals(0, Delta.mismatch(ByteBuffer.wrap(a), 0, ByteBuffer.wrap(a), 1, 30));
+    }
+
+    @Test
+    public void testPrefixSuffix() throws IOException {
+        byte[] source = "0123456789abcdefghij".getBytes("ASCII");
+        byte[] target = "0123456789XYZefghij".getBytes("ASCII");
+        Delta d = new Delta();
+        d.setChunkSize(4);
+        RecordingWriter w = new RecordingWriter();
+        d.compute(new ByteBufferSeekableSource(source), source.length,
+                new ByteBufferSeekableSource(target), target.length, w);
+        assertEquals("[0,10]XYZ[14,6]", w.toString());
+        assertArrayEquals(target, new GDiffPatcher().patch(source, d.compute(source, target)));
+    }
+
+    @Test
+    public void testPrefixSuffixOverlap() throws IOException {
+        // the suffix may not reuse bytes already copied as prefix
+        byte[] source = "aaaa".getBytes("ASCII");
+        byte[] target = "aaaaaa".getBytes("ASCII");
+        Delta d = new Delta();
+        d.setChunkSize(4);
+        RecordingWriter w = new RecordingWriter();
+        d.compute(new ByteBufferSeekableSource(source), source.length,
+                new ByteBufferSeekableSource(target), target.length, w);
+        assertEquals("[0,4]aa", w.toString());
+
+        w = new RecordingWriter();
+        d.compute(new ByteBufferSeekableSource(target), target.length,
+                new ByteBufferSeekableSource(source), source.length, w);
+        assertEquals("[0,4]", w.toString());
+    }
+
+    @Test
+    public void testPrefixSuffixLarge() throws IOException {
+        Random random = new Random(7);
+        byte[] source = new byte[300 * 1024];
+        random.nextBytes(source);
+        byte[] target = new byte[source.length + 100];
+        random.nextBytes(target);
+        System.arraycopy(source, 0, target, 0, 150000);
+        System.arraycopy(source, 150000, target, 150100, source.length - 150000);
+        byte[] patch = new Delta().compute(source, target);
+        assertTrue(patch.length < 200);
+        assertArrayEquals(target, new GDiffPatcher().patch(source, patch));
+    }
+
+    @Test
+    public void testMismatchBackward() {
+        byte[] a = new byte[30];
+        for (int i = 0; i < a.length; i++)
+            a[i] = (byte) i;
+        for (int diff = 0; diff < 30; diff++) {
+            byte[] b = a.clone();
+            b[29 - diff]++;
+            assertEquals(diff, Delta.mismatchBackward(ByteBuffer.wrap(a), ByteBuffer.wrap(b), 30));
+        }
+        assertEquals(30, Delta.mismatchBackward(ByteBuffer.wrap(a), ByteBuffer.wrap(a.clone()), 30));
+    }
+
+    @Test
+    public void testTargetCopies() throws IOException {
+        Random random = new Random(13);
+        byte[] source = new byte[10000];
+        random.nextBytes(source);
+        byte[] table = new byte[5000];
+        random.nextBytes(table);
+        // a new table repeated, then a run of zeros
+        byte[] target = new byte[4 * table.length + 50000];
+        for (int i = 0; i < 4; i++)
+            System.arraycopy(table, 0, target, i * table.length, table.length);
+        Delta d = new Delta();
+        byte[] plain = d.compute(source, target);
+        d.setTargetWindow(1 << 16);
+        byte[] patch = d.compute(source, target);
+        assertTrue(patch.length + " " + plain.length, patch.length < table.length + 200);
+        assertTrue(plain.length > 4 * table.length);
+        assertArrayEquals(target, new GDiffPatcher().patch(source, patch));
+
+        File sourceFile = File.createTempFile("source", ".bin");
+        File patchFile = File.createTempFile("patch", ".gdiff");
+        File outputFile = File.createTempFile("output", ".bin");
+        try {
+            write(sourceFile, source);
+            write(patchFile, patch);
+            new GDiffPatcher().patch(sourceFile, patchFile, outputFile);
+            assertArrayEquals(target, DeltaPatchTest.read(outputFile).toByteArray());
+        } finally {
+            sourceFile.delete();
+            patchFile.delete();
+            outputFile.delete();
+        }
+    }
+
+    @Test
+    public void testTargetWindowLimit() throws IOException {
+        Random random = new Random(14);
+        byte[] table = new byte[3000];
+        random.nextBytes(table);
+        byte[] target = new byte[table.length * 3];
+        System.arraycopy(table, 0, target, 0, table.length);
+        random.nextBytes(target);
+        System.arraycopy(table, 0, target, 0, table.length);
+        System.arraycopy(table, 0, target, 2 * table.length, table.length);
+        Delta d = new Delta();
+        // the repeat is further back than the window
+        d.setTargetWindow(4000);
+        byte[] patch = d.compute(new byte[0], target);
+        assertTrue(patch.length > target.length);
+        assertArrayEquals(target, new GDiffPatcher().patch(new byte[0], patch));
+        d.setTargetWindow(8000);
+        patch = d.compute(new byte[0], target);
+        assertTrue(patch.length < 2 * table.length + 100);
+        assertArrayEquals(target, new GDiffPatcher().patch(new byte[0], patch));
+    }
+
+    private static void write(File f, byte[] b) throws IOException {
+        FileOutputStream os = new FileOutputStream(f);
+        try {
+            os.write(b);
+        } finally {
+            os.close();
+        }
+    }
+
+    private static byte[] computeStream(Delta d, byte[] source, byte[] target) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        d.compute(source, new ByteArrayInputStream(target), new GDiffWriter(os));
+        return os.toByteArray();
+    }
+
+    /**
+     * Records instructions as text, e.g. <code>ab[10,4]</code>.
+     */
+    static class RecordingWriter implements DiffWriter {
+        
+        private StringBuffer sb = new StringBuffer();
+        
+        public void addCopy(long offset, int length) {
+            sb.append("[").append(offset).append(",").append(length).append("]");
+        }
+
+        public void addData(byte b) {
+            sb.append((char) b);
+        }
+
+        public void addData(byte[] b, int off, int len) {
+            for (int i = 0; i < len; i++)
+                addData(b[off + i]);
+        }
+
+        public void addData(ByteBuffer bb) {
+            while (bb.hasRemaining())
+                addData(bb.get());
+        }
+
+        public void flush() {}
+
+        public void close() {}
+        
+        @Override
+        public String toString() {
+            return sb.toString();
+        }
+    }
+
+}
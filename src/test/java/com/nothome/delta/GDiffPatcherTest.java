@@ -0,0 +1,171 @@
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the channel methods of {@link GDiffPatcher}.
+ */
+public class GDiffPatcherTest {
+
+    private byte source[];
+    private byte target[];
+    private byte patch[];
+    private File sourceFile;
+    private File patchFile;
+    
+    @Before
+    public void setUp() throws IOException {
+        Random random = new Random(11);
+        source = new byte[300 * 1024];
+        random.nextBytes(source);
+        // long copies around a data run longer than the patch buffer
+        byte insert[] = new byte[100 * 1024];
+        random.nextBytes(insert);
+        target = new byte[source.length + insert.length];
+        System.arraycopy(source, 0, target, 0, 150000);
+        System.arraycopy(insert, 0, target, 150000, insert.length);
+        System.arraycopy(source, 150000, target, 150000 + insert.length, source.length - 150000);
+        target[1000]++;
+        patch = new Delta().compute(source, target);
+        sourceFile = write("source", source);
+        patchFile = write("patch", patch);
+    }
+
+    @After
+    public void tearDown() {
+        sourceFile.delete();
+        patchFile.delete();
+    }
+
+    @Test
+    public void testFileChannels() throws IOException {
+        FileChannel sc = new RandomAccessFile(sourceFile, "r").getChannel();
+        FileChannel pc = new RandomAccessFile(patchFile, "r").getChannel();
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            new GDiffPatcher().patch(sc, pc, Channels.newChannel(os));
+            assertArrayEquals(target, os.toByteArray());
+        } finally {
+            sc.close();
+            pc.close();
+        }
+    }
+
+    @Test
+    public void testStreamChannels() throws IOException {
+        FileChannel sc = new RandomAccessFile(sourceFile, "r").getChannel();
+        try {
+            GDiffPatcher patcher = new GDiffPatcher();
+            for (int i = 0; i < 2; i++) {
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                patcher.patch(sc, Channels.newChannel(new ByteArrayInputStream(patch)),
+                        Channels.newChannel(os));
+                assertArrayEquals(target, os.toByteArray());
+            }
+        } finally {
+            sc.close();
+        }
+    }
+
+    @Test
+    public void testTruncated() throws IOException {
+        FileChannel sc = new RandomAccessFile(sourceFile, "r").getChannel();
+        try {
+            byte half[] = new byte[patch.length / 2];
+            System.arraycopy(patch, 0, half, 0, half.length);
+            new GDiffPatcher().patch(sc, Channels.newChannel(new ByteArrayInputStream(half)),
+                    Channels.newChannel(new ByteArrayOutputStream()));
+            fail();
+        } catch (EOFException e) {
+        } finally {
+            sc.close();
+        }
+    }
+
+    /**
+     * Takes at most <code>max</code> bytes per write.
+     */
+    private static class ThrottledChannel implements WritableByteChannel {
+        
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        private final int max;
+        
+        ThrottledChannel(int max) {
+            this.max = max;
+        }
+
+        public int write(ByteBuffer src) {
+            int n = Math.min(src.remaining(), max);
+            for (int i = 0; i < n; i++)
+                os.write(src.get());
+            return n;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    @Test
+    public void testThrottledOutput() throws IOException {
+        FileChannel sc = new RandomAccessFile(sourceFile, "r").getChannel();
+        FileChannel pc = new RandomAccessFile(patchFile, "r").getChannel();
+        try {
+            ThrottledChannel out = new ThrottledChannel(7);
+            new GDiffPatcher().patch(sc, pc, out);
+            assertArrayEquals(target, out.os.toByteArray());
+        } finally {
+            sc.close();
+            pc.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testStalledOutput() throws IOException {
+        FileChannel sc = new RandomAccessFile(sourceFile, "r").getChannel();
+        FileChannel pc = new RandomAccessFile(patchFile, "r").getChannel();
+        try {
+            new GDiffPatcher().patch(sc, pc, new ThrottledChannel(0));
+            fail();
+        } catch (EOFException e) {
+            fail();
+        } catch (IOException e) {
+        } finally {
+            sc.close();
+            pc.close();
+        }
+    }
+
+    private static File write(String name, byte b[]) throws IOException {
+        File f = File.createTempFile(name, ".bin");
+        FileOutputStream os = new FileOutputStream(f);
+        try {
+            os.write(b);
+        } finally {
+            os.close();
+        }
+        return f;
+    }
+
+}
@@ -1,9 +1,12 @@
 package com.nothome.delta;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -29,4 +32,44 @@ public class GDiffWriterTest {
         assertEquals(5 + /*D*/1 + 2 + /*C*/4 + /*D*/1 + 3 + /*EOF*/1, os.toByteArray().length);
     }
     
+    @Test
+    public void testBulkData() throws IOException {
+        byte b[] = new byte[GDiffWriter.CHUNK_SIZE * 2 + 100];
+        new Random(1).nextBytes(b);
+        
+        ByteArrayOutputStream single = new ByteArrayOutputStream();
+        GDiffWriter tw = new GDiffWriter(single);
+        for (int i = 0; i < 10; i++)
+            tw.addData(b[i]);
+        tw.addCopy(0, 20);
+        for (int i = 10; i < b.length; i++)
+            tw.addData(b[i]);
+        tw.close();
+        
+        ByteArrayOutputStream array = new ByteArrayOutputStream();
+        tw = new GDiffWriter(array);
+        tw.addData(b, 0, 10);
+        tw.addCopy(0, 20);
+        tw.addData(b, 10, 50);
+        tw.addData(b, 60, b.length - 60);
+        tw.close();
+        assertArrayEquals(single.toByteArray(), array.toByteArray());
+        
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        tw = new GDiffWriter(buffer);
+        tw.addData(ByteBuffer.wrap(b, 0, 10));
+        tw.addCopy(0, 20);
+        ByteBuffer direct = ByteBuffer.allocateDirect(b.length - 10);
+        direct.put(b, 10, b.length - 10).flip();
+        tw.addData(direct);
+        assertEquals(0, direct.remaining());
+        tw.close();
+        assertArrayEquals(single.toByteArray(), buffer.toByteArray());
+        
+        byte expected[] = new byte[b.length + 20];
+        System.arraycopy(b, 0, expected, 0, 10);
+        System.arraycopy(b, 10, expected, 30, b.length - 10);
+        assertArrayEquals(expected, new GDiffPatcher().patch(new byte[20], single.toByteArray()));
+    }
+    
 }
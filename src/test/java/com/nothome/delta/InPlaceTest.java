@@ -0,0 +1,289 @@
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link InPlaceDelta} and {@link InPlacePatcher}.
+ */
+public class InPlaceTest {
+
+    private File file;
+    private File patchFile;
+    private File journalFile;
+    
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("inplace", ".bin");
+        patchFile = File.createTempFile("inplace", ".patch");
+        journalFile = new File(file.getPath() + ".journal");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        patchFile.delete();
+        journalFile.delete();
+    }
+    
+    private static byte[] random(Random random, int length) {
+        byte b[] = new byte[length];
+        random.nextBytes(b);
+        return b;
+    }
+    
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte b[] : parts)
+            length += b.length;
+        byte result[] = new byte[length];
+        int pos = 0;
+        for (byte b[] : parts) {
+            System.arraycopy(b, 0, result, pos, b.length);
+            pos += b.length;
+        }
+        return result;
+    }
+    
+    private static byte[] slice(byte b[], int start, int end) {
+        byte result[] = new byte[end - start];
+        System.arraycopy(b, start, result, 0, result.length);
+        return result;
+    }
+    
+    private static void write(File f, byte b[]) throws IOException {
+        FileOutputStream os = new FileOutputStream(f);
+        try {
+            os.write(b);
+        } finally {
+            os.close();
+        }
+    }
+    
+    private static byte[] read(File f) throws IOException {
+        FileInputStream is = new FileInputStream(f);
+        try {
+            byte b[] = new byte[(int) f.length()];
+            int pos = 0;
+            while (pos < b.length)
+                pos += is.read(b, pos, b.length - pos);
+            return b;
+        } finally {
+            is.close();
+        }
+    }
+    
+    private byte[] patch(byte source[], byte target[]) throws IOException {
+        byte patch[] = new InPlaceDelta().compute(source, target);
+        write(file, source);
+        write(patchFile, patch);
+        new InPlacePatcher().patch(file, patchFile);
+        assertArrayEquals(target, read(file));
+        return patch;
+    }
+
+    @Test
+    public void testShift() throws IOException {
+        Random random = new Random(1);
+        byte source[] = random(random, 200000);
+        // everything moves right, then left
+        byte patch[] = patch(source, concat(random(random, 10), source));
+        assertTrue(patch.length < 1000);
+        patch = patch(source, slice(source, 7, source.length));
+        assertTrue(patch.length < 1000);
+    }
+
+    @Test
+    public void testSwap() throws IOException {
+        Random random = new Random(2);
+        byte a[] = random(random, 50000);
+        byte b[] = random(random, 30000);
+        byte patch[] = patch(concat(a, b), concat(b, a));
+        // one of the halves has to become data; the shorter one
+        assertTrue(patch.length > b.length);
+        assertTrue(patch.length < a.length);
+    }
+
+    @Test
+    public void testGrowShrink() throws IOException {
+        Random random = new Random(3);
+        byte a[] = random(random, 40000);
+        byte b[] = random(random, 40000);
+        byte c[] = random(random, 40000);
+        patch(concat(a, b, c), concat(c, a, random(random, 1000), b, c, a));
+        patch(concat(a, b, c), concat(c, slice(a, 100, 2000)));
+        patch(concat(a, b, c), new byte[0]);
+        patch(new byte[0], a);
+    }
+
+    @Test
+    public void testPermutations() throws IOException {
+        Random random = new Random(4);
+        for (int round = 0; round < 20; round++) {
+            byte blocks[][] = new byte[2 + random.nextInt(10)][];
+            for (int i = 0; i < blocks.length; i++)
+                blocks[i] = random(random, 100 + random.nextInt(20000));
+            byte source[] = concat(blocks);
+            for (int i = blocks.length - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                byte t[] = blocks[i];
+                blocks[i] = blocks[j];
+                blocks[j] = t;
+                if (random.nextInt(4) == 0)
+                    blocks[i] = blocks[random.nextInt(blocks.length)];
+            }
+            patch(source, concat(blocks));
+        }
+    }
+
+    @Test
+    public void testOrder() throws IOException {
+        // target: [2000,1000] [0,2000]; each reads what the other writes
+        DiffBuffer instructions = new DiffBuffer();
+        instructions.addCopy(2000, 1000);
+        instructions.addCopy(0, 2000);
+        boolean data[] = new boolean[2];
+        int order[] = InPlaceDelta.order(instructions, new long[] { 0, 1000 }, data);
+        assertEquals(1, order.length);
+        assertEquals(1, order[0]);
+        assertTrue(data[0]);
+        assertFalse(data[1]);
+    }
+
+    @Test
+    public void testOrderChainOffCycle() throws IOException {
+        // two copies read what the other writes; a chain of shorter
+        // copies waits for the first of them, each reading what the
+        // next one writes
+        DiffBuffer instructions = new DiffBuffer();
+        instructions.addCopy(150, 100);
+        instructions.addCopy(0, 100);
+        int chain = 20;
+        for (int i = 0; i < chain; i++)
+            instructions.addCopy(i == chain - 1 ? 10000 : 210 + 10 * i, 10);
+        long to[] = new long[instructions.size()];
+        for (int i = 1; i < to.length; i++)
+            to[i] = to[i - 1] + instructions.getLength(i - 1);
+        boolean data[] = new boolean[to.length];
+        int order[] = InPlaceDelta.order(instructions, to, data);
+        assertEquals(to.length - 1, order.length);
+        assertTrue(data[0] != data[1]);
+        for (int i = 2; i < to.length; i++)
+            assertFalse(data[i]);
+    }
+
+    @Test
+    public void testWrongSource() throws IOException {
+        Random random = new Random(5);
+        byte source[] = random(random, 1000);
+        write(patchFile, new InPlaceDelta().compute(source, random(random, 1000)));
+        write(file, random(random, 999));
+        try {
+            new InPlacePatcher().patch(file, patchFile);
+            fail();
+        } catch (PatchException e) {
+        }
+    }
+
+    /**
+     * Fails after a number of writes to the patched file, optionally
+     * having written part of the chunk.
+     */
+    private static class CrashingPatcher extends InPlacePatcher {
+        
+        private int writes;
+        private final boolean torn;
+        
+        CrashingPatcher(int writes, boolean torn) {
+            this.writes = writes;
+            this.torn = torn;
+            setChunkSize(4096);
+        }
+        
+        @Override
+        void write(FileChannel file, ByteBuffer bb, long pos) throws IOException {
+            if (writes-- == 0) {
+                if (torn) {
+                    bb.limit(bb.position() + bb.remaining() / 2);
+                    super.write(file, bb, pos);
+                }
+                throw new IOException("crash");
+            }
+            super.write(file, bb, pos);
+        }
+    }
+
+    @Test
+    public void testResume() throws IOException {
+        Random random = new Random(6);
+        byte a[] = random(random, 10000);
+        byte b[] = random(random, 7000);
+        byte source[] = concat(a, b);
+        byte target[] = concat(random(random, 5), b, a, random(random, 3000), slice(a, 0, 5000));
+        write(patchFile, new InPlaceDelta().compute(source, target));
+        for (int crash = 0; ; crash++) {
+            write(file, source);
+            try {
+                new CrashingPatcher(crash, crash % 2 == 1).patch(file, patchFile, journalFile);
+                break;
+            } catch (IOException e) {
+                assertEquals("crash", e.getMessage());
+            }
+            assertTrue(journalFile.exists());
+            InPlacePatcher patcher = new InPlacePatcher();
+            patcher.setChunkSize(4096);
+            patcher.patch(file, patchFile, journalFile);
+            assertArrayEquals("crash " + crash, target, read(file));
+            assertFalse(journalFile.exists());
+        }
+        assertArrayEquals(target, read(file));
+        assertFalse(journalFile.exists());
+    }
+
+    /**
+     * Patches again after a crash between cutting the file and deleting
+     * the journal.
+     */
+    @Test
+    public void testResumeCompleted() throws IOException {
+        Random random = new Random(7);
+        byte a[] = random(random, 10000);
+        byte b[] = random(random, 7000);
+        byte targets[][] = { concat(b, a), slice(a, 0, 5000), new byte[0] };
+        for (byte target[] : targets) {
+            write(file, concat(a, b));
+            write(patchFile, new InPlaceDelta().compute(concat(a, b), target));
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            FileInputStream patch = new FileInputStream(patchFile);
+            RandomAccessFile journal = new RandomAccessFile(journalFile, "rw");
+            try {
+                new InPlacePatcher().patch(raf.getChannel(), patch.getChannel(), journal.getChannel());
+            } finally {
+                raf.close();
+                patch.close();
+                journal.close();
+            }
+            assertTrue(journalFile.exists());
+            new InPlacePatcher().patch(file, patchFile, journalFile);
+            assertArrayEquals(target, read(file));
+            assertFalse(journalFile.exists());
+        }
+    }
+
+}
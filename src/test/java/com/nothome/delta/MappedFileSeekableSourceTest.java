@@ -0,0 +1,103 @@
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link MappedFileSeekableSource}.
+ */
+public class MappedFileSeekableSourceTest {
+
+    private File file;
+    private byte[] bytes;
+
+    @Before
+    public void setUp() throws IOException {
+        bytes = new byte[10000];
+        new Random(3).nextBytes(bytes);
+        file = File.createTempFile("mapped", ".bin");
+        FileOutputStream os = new FileOutputStream(file);
+        os.write(bytes);
+        os.close();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testRegions() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        MappedFileSeekableSource source = new MappedFileSeekableSource(raf.getChannel(), 1000);
+        raf.close();
+        assertEquals(bytes.length, source.length());
+
+        // spans three regions, into a direct buffer
+        ByteBuffer bb = ByteBuffer.allocateDirect(2500);
+        source.seek(900);
+        assertEquals(2500, source.read(bb));
+        bb.flip();
+        byte[] b = new byte[2500];
+        bb.get(b);
+        assertArrayEquals(copy(900, 2500), b);
+
+        source.seek(bytes.length - 10);
+        bb.clear();
+        assertEquals(10, source.read(bb));
+        bb.clear();
+        assertEquals(-1, source.read(bb));
+
+        MappedFileSeekableSource other = source.duplicate();
+        other.seek(0);
+        bb = ByteBuffer.allocate(10);
+        other.read(bb);
+        assertArrayEquals(copy(0, 10), bb.array());
+        source.close();
+    }
+
+    @Test
+    public void testDirectBuffer() throws IOException {
+        RandomAccessFileSeekableSource source = new RandomAccessFileSeekableSource(new RandomAccessFile(file, "r"));
+        ByteBuffer bb = ByteBuffer.allocateDirect(100);
+        source.seek(50);
+        assertEquals(100, source.read(bb));
+        bb.flip();
+        byte[] b = new byte[100];
+        bb.get(b);
+        assertArrayEquals(copy(50, 100), b);
+        source.close();
+    }
+
+    @Test
+    public void testDeltaPatch() throws IOException {
+        byte[] target = copy(5000, 5000);
+        MappedFileSeekableSource source = new MappedFileSeekableSource(file);
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        new Delta().compute(source, new ByteArrayInputStream(target), new GDiffWriter(patch));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new GDiffPatcher().patch(source, new ByteArrayInputStream(patch.toByteArray()), out);
+        assertArrayEquals(target, out.toByteArray());
+        source.close();
+    }
+
+    private byte[] copy(int off, int len) {
+        byte[] b = new byte[len];
+        System.arraycopy(bytes, off, b, 0, len);
+        return b;
+    }
+
+}
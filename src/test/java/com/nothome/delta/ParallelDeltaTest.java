@@ -0,0 +1,104 @@
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link ParallelDelta}.
+ */
+public class ParallelDeltaTest {
+
+    private ExecutorService executor;
+    private byte[] source;
+    private byte[] target;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+        Random random = new Random(11);
+        source = new byte[300 * 1000];
+        random.nextBytes(source);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        // moved and edited pieces of the source, and some new data
+        for (int i = 0; i < 40; i++) {
+            int off = random.nextInt(source.length - 20000);
+            os.write(source, off, random.nextInt(20000));
+            byte[] b = new byte[random.nextInt(200)];
+            random.nextBytes(b);
+            os.write(b, 0, b.length);
+        }
+        target = os.toByteArray();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testBytes() throws IOException {
+        byte[] sequential = new Delta().compute(source, target);
+        for (int segment : new int[] { 1000, 4096, 77777, 1 << 20 }) {
+            ParallelDelta pd = new ParallelDelta(new Delta(), executor);
+            pd.setSegmentSize(segment);
+            pd.setMaxPending(3);
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            pd.compute(source, target, new GDiffWriter(os));
+            byte[] patch = os.toByteArray();
+            assertArrayEquals(target, new GDiffPatcher().patch(source, patch));
+            assertTrue(segment + " " + patch.length + " " + sequential.length,
+                    patch.length <= sequential.length * 11 / 10);
+            if (segment > target.length)
+                assertArrayEquals(sequential, patch);
+        }
+    }
+
+    @Test
+    public void testIdentical() throws IOException {
+        ParallelDelta pd = new ParallelDelta(new Delta(), executor);
+        pd.setSegmentSize(1000);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        pd.compute(source, source, new GDiffWriter(os));
+        assertArrayEquals(new Delta().compute(source, source), os.toByteArray());
+    }
+
+    @Test
+    public void testFiles() throws IOException {
+        File sourceFile = File.createTempFile("source", ".bin");
+        File targetFile = File.createTempFile("target", ".bin");
+        try {
+            write(sourceFile, source);
+            write(targetFile, target);
+            ParallelDelta pd = new ParallelDelta(new Delta(), executor);
+            pd.setSegmentSize(10000);
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            pd.compute(sourceFile, targetFile, new GDiffWriter(os));
+            assertArrayEquals(target, new GDiffPatcher().patch(source, os.toByteArray()));
+        } finally {
+            sourceFile.delete();
+            targetFile.delete();
+        }
+    }
+
+    private static void write(File f, byte[] b) throws IOException {
+        FileOutputStream os = new FileOutputStream(f);
+        try {
+            os.write(b);
+        } finally {
+            os.close();
+        }
+    }
+
+}
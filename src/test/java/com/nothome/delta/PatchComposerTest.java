@@ -0,0 +1,93 @@
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.nothome.delta.DeltaTest.RecordingWriter;
+
+/**
+ * Tests {@link PatchComposer}.
+ */
+public class PatchComposerTest {
+
+    private static byte[] edit(Random random, byte b[], int edits) {
+        byte r[] = b.clone();
+        for (int i = 0; i < edits; i++)
+            r[random.nextInt(r.length)] = (byte) random.nextInt();
+        return r;
+    }
+
+    @Test
+    public void testCompose() throws IOException {
+        Random random = new Random(23);
+        byte a[] = new byte[50 * 1024];
+        random.nextBytes(a);
+        byte b[] = edit(random, a, 100);
+        byte c[] = edit(random, b, 100);
+        Delta d = new Delta();
+        byte ab[] = d.compute(a, b);
+        byte bc[] = d.compute(b, c);
+        byte ac[] = new PatchComposer().compose(ab, bc);
+        assertArrayEquals(c, new GDiffPatcher().patch(a, ac));
+    }
+
+    @Test
+    public void testChain() throws IOException {
+        Random random = new Random(24);
+        byte versions[][] = new byte[5][];
+        versions[0] = new byte[4000];
+        random.nextBytes(versions[0]);
+        Delta d = new Delta();
+        d.setChunkSize(8);
+        byte patch[] = null;
+        for (int i = 1; i < versions.length; i++) {
+            // shift the contents, insert and edit
+            byte v[] = new byte[versions[i - 1].length + 50];
+            random.nextBytes(v);
+            System.arraycopy(versions[i - 1], 20, v, 70, versions[i - 1].length - 20);
+            versions[i] = edit(random, v, 30);
+            byte step[] = d.compute(versions[i - 1], versions[i]);
+            patch = patch == null ? step : new PatchComposer().compose(patch, step);
+            assertArrayEquals(versions[i], new GDiffPatcher().patch(versions[0], patch));
+        }
+    }
+
+    @Test
+    public void testJoinCopies() throws IOException {
+        // B = "0123" + "xy" + "4567"; C copies all of B but "xy"
+        byte a[] = "01234567".getBytes("ASCII");
+        RecordingWriter w = new RecordingWriter();
+        byte ab[] = patch(0, 4, "xy", 4, 4);
+        byte bc[] = patch(0, 4, null, 6, 4);
+        new PatchComposer().compose(new ByteArrayInputStream(ab), new ByteArrayInputStream(bc), w);
+        assertEquals("[0,8]", w.toString());
+        assertArrayEquals(a, new GDiffPatcher().patch(a, new PatchComposer().compose(ab, bc)));
+        
+        try {
+            new PatchComposer().compose(ab, patch(8, 4, null, 0, 0));
+            fail();
+        } catch (PatchException e) {
+        }
+    }
+    
+    private static byte[] patch(long copy1, int len1, String data, long copy2, int len2) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        GDiffWriter w = new GDiffWriter(os);
+        w.addCopy(copy1, len1);
+        if (data != null)
+            w.addData(data.getBytes("ASCII"), 0, data.length());
+        if (len2 > 0)
+            w.addCopy(copy2, len2);
+        w.close();
+        return os.toByteArray();
+    }
+
+}
@@ -0,0 +1,87 @@
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link PatchInputStream}.
+ */
+public class PatchInputStreamTest {
+
+    private byte source[];
+    private byte target[];
+    private byte patch[];
+
+    @Before
+    public void setUp() throws IOException {
+        Random random = new Random(5);
+        source = new byte[100 * 1024];
+        random.nextBytes(source);
+        target = source.clone();
+        for (int i = 0; i < 50; i++)
+            target[random.nextInt(target.length)]++;
+        patch = new Delta().compute(source, target);
+    }
+
+    private PatchInputStream open() throws IOException {
+        return new PatchInputStream(new ByteBufferSeekableSource(source),
+                new ByteArrayInputStream(patch));
+    }
+
+    @Test
+    public void testRead() throws IOException {
+        PatchInputStream is = open();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte b[] = new byte[1000];
+        int n;
+        while ((n = is.read(b, 0, b.length)) != -1)
+            os.write(b, 0, n);
+        assertEquals(-1, is.read());
+        is.close();
+        assertArrayEquals(target, os.toByteArray());
+    }
+
+    @Test
+    public void testReadByte() throws IOException {
+        PatchInputStream is = open();
+        for (int i = 0; i < target.length; i++)
+            assertEquals(target[i] & 0xff, is.read());
+        assertEquals(-1, is.read());
+        is.close();
+    }
+
+    @Test
+    public void testChannel() throws IOException {
+        PatchInputStream is = open();
+        ByteBuffer bb = ByteBuffer.allocateDirect(target.length + 1);
+        while (is.read(bb) != -1);
+        is.close();
+        assertFalse(is.isOpen());
+        bb.flip();
+        byte b[] = new byte[bb.remaining()];
+        bb.get(b);
+        assertArrayEquals(target, b);
+    }
+
+    @Test
+    public void testBadMagic() throws IOException {
+        try {
+            new PatchInputStream(new ByteBufferSeekableSource(source),
+                    new ByteArrayInputStream(new byte[] { 1, 2, 3, 4, 5 }));
+            fail();
+        } catch (PatchException e) {
+        }
+    }
+
+}
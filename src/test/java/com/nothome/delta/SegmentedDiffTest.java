@@ -0,0 +1,171 @@
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link SegmentedDiffWriter} and {@link SegmentedDiffPatcher}.
+ */
+public class SegmentedDiffTest {
+
+    private byte source[];
+    private byte target[];
+    private File sourceFile;
+    private File patchFile;
+    private File outputFile;
+    
+    @Before
+    public void setUp() throws IOException {
+        Random random = new Random(21);
+        source = new byte[200000];
+        random.nextBytes(source);
+        target = new byte[250000];
+        random.nextBytes(target);
+        System.arraycopy(source, 0, target, 1000, 100000);
+        System.arraycopy(source, 120000, target, 140000, 80000);
+        sourceFile = write("source", source);
+        patchFile = File.createTempFile("patch", ".bin");
+        outputFile = File.createTempFile("output", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        sourceFile.delete();
+        patchFile.delete();
+        outputFile.delete();
+    }
+    
+    private static File write(String name, byte b[]) throws IOException {
+        File f = File.createTempFile(name, ".bin");
+        FileOutputStream os = new FileOutputStream(f);
+        try {
+            os.write(b);
+        } finally {
+            os.close();
+        }
+        return f;
+    }
+    
+    private void writePatch(int segmentSize) throws IOException {
+        new Delta().compute(source, new ByteArrayInputStream(target), new SegmentedDiffWriter(new FileOutputStream(patchFile), segmentSize));
+    }
+    
+    private static byte[] read(FileChannel ch) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate((int) ch.size());
+        while (bb.hasRemaining())
+            ch.read(bb, bb.position());
+        return bb.array();
+    }
+
+    @Test
+    public void testParallel() throws IOException {
+        writePatch(1000);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        FileChannel sc = new RandomAccessFile(sourceFile, "r").getChannel();
+        FileChannel pc = new RandomAccessFile(patchFile, "r").getChannel();
+        FileChannel oc = new RandomAccessFile(outputFile, "rw").getChannel();
+        try {
+            SegmentedDiffPatcher patcher = new SegmentedDiffPatcher(sc, pc);
+            assertEquals(target.length, patcher.getTargetLength());
+            patcher.patch(oc, executor);
+            assertArrayEquals(target, read(oc));
+        } finally {
+            executor.shutdown();
+            sc.close();
+            pc.close();
+            oc.close();
+        }
+    }
+
+    @Test
+    public void testRanges() throws IOException {
+        writePatch(SegmentedDiffWriter.DEFAULT_SEGMENT_SIZE);
+        Random random = new Random(22);
+        FileChannel sc = new RandomAccessFile(sourceFile, "r").getChannel();
+        FileChannel pc = new RandomAccessFile(patchFile, "r").getChannel();
+        try {
+            SegmentedDiffPatcher patcher = new SegmentedDiffPatcher(sc, pc);
+            for (int i = 0; i < 50; i++) {
+                int from = random.nextInt(target.length);
+                int to = from + random.nextInt(Math.min(target.length - from, 200000) + 1);
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                patcher.patch(from, to, Channels.newChannel(os));
+                byte expected[] = new byte[to - from];
+                System.arraycopy(target, from, expected, 0, expected.length);
+                assertArrayEquals(from + " " + to, expected, os.toByteArray());
+            }
+        } finally {
+            sc.close();
+            pc.close();
+        }
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        target = new byte[0];
+        writePatch(1000);
+        FileChannel sc = new RandomAccessFile(sourceFile, "r").getChannel();
+        FileChannel pc = new RandomAccessFile(patchFile, "r").getChannel();
+        try {
+            SegmentedDiffPatcher patcher = new SegmentedDiffPatcher(sc, pc);
+            assertEquals(0, patcher.getTargetLength());
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            patcher.patch(0, 0, Channels.newChannel(os));
+            assertEquals(0, os.size());
+        } finally {
+            sc.close();
+            pc.close();
+        }
+    }
+
+    @Test
+    public void testNotSegmented() throws IOException {
+        FileOutputStream os = new FileOutputStream(patchFile);
+        os.write(new Delta().compute(source, target));
+        os.close();
+        FileChannel sc = new RandomAccessFile(sourceFile, "r").getChannel();
+        FileChannel pc = new RandomAccessFile(patchFile, "r").getChannel();
+        try {
+            new SegmentedDiffPatcher(sc, pc);
+            fail();
+        } catch (PatchException e) {
+        } finally {
+            sc.close();
+            pc.close();
+        }
+    }
+
+    @Test
+    public void testSignatureNotPatch() throws IOException {
+        new SourceIndex(new ByteBufferSeekableSource(source), 16).write(patchFile);
+        FileChannel sc = new RandomAccessFile(sourceFile, "r").getChannel();
+        FileChannel pc = new RandomAccessFile(patchFile, "r").getChannel();
+        try {
+            new SegmentedDiffPatcher(sc, pc);
+            fail();
+        } catch (PatchException e) {
+        } finally {
+            sc.close();
+            pc.close();
+        }
+    }
+
+}
@@ -0,0 +1,136 @@
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link SourceIndex} signature files.
+ */
+public class SourceIndexTest {
+
+    private File sourceFile;
+    private File signatureFile;
+    private File targetFile;
+    private byte[] source;
+    private byte[] target;
+
+    @Before
+    public void setUp() throws IOException {
+        Random random = new Random(7);
+        source = new byte[512 * 1024];
+        random.nextBytes(source);
+        target = source.clone();
+        for (int i = 0; i < 50; i++)
+            target[random.nextInt(target.length)] = (byte) random.nextInt();
+        sourceFile = File.createTempFile("source", ".bin");
+        signatureFile = File.createTempFile("source", ".sig");
+        targetFile = File.createTempFile("target", ".bin");
+        signatureFile.delete();
+        write(sourceFile, source);
+        write(targetFile, target);
+    }
+
+    @After
+    public void tearDown() {
+        sourceFile.delete();
+        signatureFile.delete();
+        targetFile.delete();
+    }
+
+    @Test
+    public void testWriteLoad() throws IOException {
+        SourceIndex index = new SourceIndex(new ByteBufferSeekableSource(source), 32);
+        index.write(signatureFile);
+        SourceIndex loaded = SourceIndex.load(signatureFile,
+                new ByteBufferSeekableSource(source), source.length);
+        assertNotNull(loaded);
+        assertEquals(32, loaded.getChunkSize());
+        assertArrayEquals(patch(index), patch(loaded));
+
+        byte[] changed = source.clone();
+        changed[changed.length - 1]++;
+        assertNull(SourceIndex.load(signatureFile,
+                new ByteBufferSeekableSource(changed), changed.length));
+        assertNull(SourceIndex.load(signatureFile,
+                new ByteBufferSeekableSource(source), source.length - 1));
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotSignature() throws IOException {
+        write(signatureFile, new byte[100]);
+        SourceIndex.load(signatureFile, new ByteBufferSeekableSource(source), source.length);
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorruptSignature() throws IOException {
+        new SourceIndex(new ByteBufferSeekableSource(source), 32).write(signatureFile);
+        int count = source.length / 32;
+        RandomAccessFile raf = new RandomAccessFile(signatureFile, "rw");
+        try {
+            // the first block links to a higher one, making a cycle
+            raf.seek(28 + 8 + count * 4);
+            raf.writeInt(5);
+        } finally {
+            raf.close();
+        }
+        SourceIndex.load(signatureFile, new ByteBufferSeekableSource(source), source.length);
+    }
+
+    @Test
+    public void testDeltaSignature() throws IOException {
+        Delta d = new Delta();
+        byte[] first = compute(d);
+        assertTrue(signatureFile.exists());
+        long modified = signatureFile.lastModified();
+        byte[] second = compute(d);
+        assertEquals(modified, signatureFile.lastModified());
+        assertArrayEquals(first, second);
+        assertArrayEquals(target, new GDiffPatcher().patch(source, second));
+
+        // a changed source makes the signature stale
+        source[0]++;
+        write(sourceFile, source);
+        byte[] third = compute(d);
+        assertArrayEquals(target, new GDiffPatcher().patch(source, third));
+        assertNotNull(SourceIndex.load(signatureFile,
+                new ByteBufferSeekableSource(source), source.length));
+    }
+
+    private byte[] compute(Delta d) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        d.compute(sourceFile, signatureFile, targetFile, new GDiffWriter(os));
+        return os.toByteArray();
+    }
+
+    private byte[] patch(SourceIndex index) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new Delta().compute(index, new ByteBufferSeekableSource(source),
+                new ByteArrayInputStream(target), new GDiffWriter(os));
+        return os.toByteArray();
+    }
+
+    private static void write(File f, byte[] b) throws IOException {
+        FileOutputStream os = new FileOutputStream(f);
+        try {
+            os.write(b);
+        } finally {
+            os.close();
+        }
+    }
+
+}
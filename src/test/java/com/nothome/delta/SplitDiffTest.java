@@ -0,0 +1,106 @@
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link SplitDiffWriter} and {@link SplitDiffPatcher}.
+ */
+public class SplitDiffTest {
+
+    private static byte[] split(byte source[], byte target[]) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new Delta().compute(source, new ByteArrayInputStream(target), new SplitDiffWriter(os));
+        return os.toByteArray();
+    }
+    
+    /**
+     * Returns lines of words with numbers, like a log or source file.
+     */
+    private static byte[] text(Random random, int lines) throws IOException {
+        String words[] = { "copy", "data", "offset", "length", "source", "target", "patch" };
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < lines; i++) {
+            for (int j = random.nextInt(8); j >= 0; j--)
+                sb.append(words[random.nextInt(words.length)]).append(' ');
+            sb.append(random.nextInt(100000)).append('\n');
+        }
+        return sb.toString().getBytes("ASCII");
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Random random = new Random(17);
+        byte source[] = text(random, 20000);
+        byte target[] = source.clone();
+        for (int i = 0; i < 2000; i++)
+            target[random.nextInt(target.length)] = (byte) ('0' + random.nextInt(10));
+        byte patch[] = split(source, target);
+        assertArrayEquals(target, new SplitDiffPatcher().patch(source, patch));
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        DeflaterOutputStream dos = new DeflaterOutputStream(os);
+        dos.write(new Delta().compute(source, target));
+        dos.close();
+        assertTrue(patch.length + " " + os.size(), patch.length < os.size());
+    }
+
+    @Test
+    public void testBlocks() throws IOException {
+        Random random = new Random(18);
+        byte source[] = new byte[1000];
+        random.nextBytes(source);
+        // more data than fits in one block
+        byte target[] = new byte[SplitDiffWriter.BLOCK_SIZE * 2 + 1000];
+        random.nextBytes(target);
+        System.arraycopy(source, 0, target, 5000, source.length);
+        System.arraycopy(source, 0, target, target.length - source.length, source.length);
+        byte patch[] = split(source, target);
+        assertArrayEquals(target, new SplitDiffPatcher().patch(source, patch));
+        assertArrayEquals(new byte[0], new SplitDiffPatcher().patch(source, split(source, new byte[0])));
+    }
+
+    @Test
+    public void testLargeData() throws IOException {
+        Random random = new Random(20);
+        byte source[] = new byte[100];
+        random.nextBytes(source);
+        byte data[] = new byte[SplitDiffWriter.BLOCK_SIZE * 3 + 10];
+        random.nextBytes(data);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        SplitDiffWriter writer = new SplitDiffWriter(os);
+        writer.addCopy(0, 0);
+        writer.flush(); // a block of no target bytes
+        writer.addCopy(10, 20);
+        writer.addData(data, 0, data.length); // split across blocks
+        writer.close();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(source, 10, 20);
+        expected.write(data);
+        assertArrayEquals(expected.toByteArray(), new SplitDiffPatcher().patch(source, os.toByteArray()));
+    }
+
+    @Test
+    public void testCorrupt() throws IOException {
+        Random random = new Random(19);
+        byte source[] = text(random, 100);
+        byte target[] = text(random, 100);
+        byte patch[] = split(source, target);
+        patch[patch.length - 5] ^= 0x55;
+        try {
+            new SplitDiffPatcher().patch(source, patch);
+            fail();
+        } catch (IOException e) {
+        }
+    }
+
+}
@@ -0,0 +1,132 @@
+package com.nothome.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Adler32;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link VcdiffWriter} and {@link VcdiffPatcher}.
+ */
+public class VcdiffTest {
+
+    private static byte[] vcdiff(byte source[], byte target[], int windowSize) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new Delta().compute(source, new ByteArrayInputStream(target), new VcdiffWriter(os, windowSize));
+        return os.toByteArray();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Random random = new Random(21);
+        byte source[] = new byte[100 * 1024];
+        random.nextBytes(source);
+        byte target[] = source.clone();
+        for (int i = 0; i < 200; i++)
+            target[random.nextInt(target.length)]++;
+        int windows[] = { 1000, 4096, VcdiffWriter.DEFAULT_WINDOW_SIZE };
+        for (int window : windows) {
+            byte patch[] = vcdiff(source, target, window);
+            assertArrayEquals(target, new VcdiffPatcher().patch(source, patch));
+        }
+        byte gdiff[] = new Delta().compute(source, target);
+        byte patch[] = vcdiff(source, target, VcdiffWriter.DEFAULT_WINDOW_SIZE);
+        assertTrue(patch.length + " " + gdiff.length, patch.length < gdiff.length);
+    }
+
+    @Test
+    public void testDataOnly() throws IOException {
+        byte target[] = "no source here".getBytes("ASCII");
+        byte patch[] = vcdiff(new byte[0], target, 5);
+        assertArrayEquals(target, new VcdiffPatcher().patch(new byte[0], patch));
+        patch = vcdiff(new byte[0], new byte[0], 5);
+        assertEquals(5, patch.length);
+        assertArrayEquals(new byte[0], new VcdiffPatcher().patch(new byte[0], patch));
+    }
+
+    /**
+     * A patch assembled by hand following RFC 3284, using instructions
+     * this writer does not produce.
+     */
+    @Test
+    public void testDecoder() throws IOException {
+        byte source[] = "abcdefghij".getBytes("ASCII");
+        byte target[] = "abcdxxxxxxxxxxabcd".getBytes("ASCII");
+        Adler32 adler = new Adler32();
+        adler.update(target);
+        long sum = adler.getValue();
+        byte patch[] = bytes(
+                0xd6, 0xc3, 0xc4, 0x00,
+                0x04, 3, 'f', 'o', 'o', // application header
+                0x05, 10, 0, // source and checksum, segment length and position
+                18, // delta encoding length
+                18, 0, 1, 5, 3,
+                (int) (sum >>> 24), (int) (sum >>> 16), (int) (sum >>> 8), (int) sum,
+                'x', // data
+                20, // COPY 4, self
+                0, 4, // RUN 4
+                38, // COPY 6, here; overlaps its output
+                116, // COPY 4, same cache
+                0, 4, 0); // addresses
+        assertArrayEquals(target, new VcdiffPatcher().patch(source, patch));
+        
+        patch[patch.length - 9]++; // data byte, fails the checksum
+        try {
+            new VcdiffPatcher().patch(source, patch);
+            fail();
+        } catch (PatchException e) {
+        }
+    }
+
+    /**
+     * A copy may start in the source segment and run on into the target
+     * window, RFC 3284 section 5.3.
+     */
+    @Test
+    public void testCopyIntoTarget() throws IOException {
+        byte source[] = "abcdefghij".getBytes("ASCII");
+        byte target[] = "xyijxyij".getBytes("ASCII");
+        Adler32 adler = new Adler32();
+        adler.update(target);
+        long sum = adler.getValue();
+        byte patch[] = bytes(
+                0xd6, 0xc3, 0xc4, 0x00,
+                0x00,
+                0x05, 4, 6, // source and checksum, segment "ghij"
+                14, // delta encoding length
+                8, 0, 2, 2, 1,
+                (int) (sum >>> 24), (int) (sum >>> 16), (int) (sum >>> 8), (int) sum,
+                'x', 'y', // data
+                3, // ADD 2
+                22, // COPY 6, self; "ij" of the segment, then "xyij" of the window
+                2); // addresses
+        assertArrayEquals(target, new VcdiffPatcher().patch(source, patch));
+    }
+
+    @Test
+    public void testVarint() {
+        VcdiffBytes b = new VcdiffBytes(1);
+        b.writeVarint(123456789);
+        // example from RFC 3284 section 2
+        assertEquals(4, b.size());
+        byte expected[] = bytes(0xba, 0xef, 0x9a, 0x15);
+        for (int i = 0; i < expected.length; i++)
+            assertEquals(expected[i], b.array()[i]);
+    }
+
+    private static byte[] bytes(int... b) {
+        byte r[] = new byte[b.length];
+        for (int i = 0; i < b.length; i++)
+            r[i] = (byte) b[i];
+        return r;
+    }
+
+}